@@ -2,10 +2,40 @@ package de.l0c4lh057.templatebot.commands;
 
 import reactor.util.annotation.NonNull;
 
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
 
-public class ArgumentList extends ArrayList<String> {
+/**
+ * An unmodifiable list of the arguments passed to a command.
+ * <p>
+ * Parsing only records where every argument starts and ends in the original content and which characters got removed
+ * because they escape the following character. The {@link String} of an argument is only created when it is accessed
+ * for the first time. Lists returned by {@link #subList(int, int)} share these offsets with the list they got created
+ * from.
+ */
+public class ArgumentList extends AbstractList<String> implements RandomAccess {
+	
+	private static final int[] EMPTY = new int[0];
+	
+	@NonNull private final String content;
+	/**
+	 * The start (inclusive) and end (exclusive) indices of all arguments in {@link #content}
+	 */
+	@NonNull private final int[] starts;
+	@NonNull private final int[] ends;
+	/**
+	 * The sorted indices of all backslashes in {@link #content} which escape the following character and therefore are
+	 * not part of any argument
+	 */
+	@NonNull private final int[] escapes;
+	private final int escapeCount;
+	/**
+	 * The arguments that already got accessed, shared with all sub lists
+	 */
+	@NonNull private final String[] values;
+	private final int from;
+	private final int size;
 	
 	private int index = 0;
 	private int filteredSize = -1;
@@ -14,76 +44,186 @@ public class ArgumentList extends ArrayList<String> {
 		return argument.length() == 0 || (argument.length() == 1 && Character.isWhitespace(argument.charAt(0)) && !argument.equals(" "));
 	}
 	
-	private ArgumentList(){
-		super();
-	}
-	
-	private ArgumentList(@NonNull Collection<String> c){
-		super(c);
+	private ArgumentList(@NonNull String content, @NonNull int[] starts, @NonNull int[] ends, @NonNull int[] escapes, int escapeCount, @NonNull String[] values, int from, int size){
+		this.content = content;
+		this.starts = starts;
+		this.ends = ends;
+		this.escapes = escapes;
+		this.escapeCount = escapeCount;
+		this.values = values;
+		this.from = from;
+		this.size = size;
 	}
 	
 	/**
 	 * @return An empty {@link ArgumentList} instance
 	 */
-	public static ArgumentList empty(){ return new ArgumentList(); }
+	public static ArgumentList empty(){ return new ArgumentList("", EMPTY, EMPTY, EMPTY, 0, new String[0], 0, 0); }
 	
 	/**
-	 * TODO add description here
+	 * Splits the input at whitespaces. Spaces only separate arguments while all other whitespaces are arguments on their
+	 * own, so two spaces in a row result in an empty argument. Arguments starting with {@code "} or {@code '} last
+	 * until the same quote character appears again and may contain whitespaces. A backslash escapes the following
+	 * character.
 	 *
 	 * @param content The input that should get parsed into a list of arguments
 	 * @return A new {@link ArgumentList} containing all the arguments parsed from the input
 	 */
 	@NonNull
 	public static ArgumentList of(@NonNull String content){
-		ArgumentList args = new ArgumentList();
-		if(content.length() == 0) return args;
+		return of(content, 0);
+	}
+	
+	/**
+	 * Parses the arguments starting at an offset of the input, e.g. right after the command name in a message.
+	 *
+	 * @param content The input that should get parsed into a list of arguments
+	 * @param offset  The index of the first character that belongs to the arguments
+	 * @return A new {@link ArgumentList} containing all the arguments parsed from the input
+	 * @see #of(String)
+	 */
+	@NonNull
+	public static ArgumentList of(@NonNull CharSequence content, int offset){
+		String text = content.toString();
+		int length = text.length();
+		if(length <= offset) return empty();
+		int[] starts = new int[Math.min(length - offset, 16)];
+		int[] ends = new int[starts.length];
+		int[] escapes = EMPTY;
+		int size = 0;
+		int escapeCount = 0;
 		boolean escaped = false;
 		boolean inQuotes = false;
 		char quoteChar = '-';
 		boolean endedQuote = false;
-		StringBuilder currArg = new StringBuilder();
-		for (char c : content.toCharArray()) {
+		// the start of the current argument and the number of characters it contains so far
+		int argStart = offset;
+		int argLength = 0;
+		for (int i = offset; i < length; i++) {
+			char c = text.charAt(i);
 			if (endedQuote) {
 				endedQuote = false;
 				if(Character.isWhitespace(c)){
-					if(c != ' ') args.add(""+c);
+					if(c != ' '){
+						if(size == starts.length){
+							starts = Arrays.copyOf(starts, size * 2);
+							ends = Arrays.copyOf(ends, size * 2);
+						}
+						starts[size] = i;
+						ends[size++] = i + 1;
+					}
+					argStart = i + 1;
 					quoteChar = '-';
 					continue;
 				}else{
-					currArg = new StringBuilder(args.get(args.size()-1)).append(quoteChar);
-					args.remove(args.size()-1);
+					// the quote did not end the argument, continue the previous one with the quote character included
+					argStart = starts[--size];
+					argLength = 1;
 				}
 				quoteChar = '-';
 			}
 			if (Character.isWhitespace(c) && !inQuotes && !escaped) {
-				args.add(currArg.toString());
-				currArg = new StringBuilder();
-				escaped = false;
-				if(c != ' ') args.add(""+c);
+				if(size + 2 > starts.length){
+					starts = Arrays.copyOf(starts, size * 2 + 2);
+					ends = Arrays.copyOf(ends, size * 2 + 2);
+				}
+				starts[size] = argStart;
+				ends[size++] = i;
+				if(c != ' '){
+					starts[size] = i;
+					ends[size++] = i + 1;
+				}
+				argStart = i + 1;
+				argLength = 0;
 				continue;
 			}
 			if (c == quoteChar && c != '-' && !escaped) {
-				args.add(currArg.toString());
-				currArg = new StringBuilder();
+				if(size == starts.length){
+					starts = Arrays.copyOf(starts, size * 2);
+					ends = Arrays.copyOf(ends, size * 2);
+				}
+				starts[size] = argStart;
+				ends[size++] = i;
+				argStart = i + 1;
+				argLength = 0;
 				inQuotes = false;
 				endedQuote = true;
 				continue;
 			}
 			if (c == '\\' && !escaped) {
+				if(escapeCount == escapes.length) escapes = Arrays.copyOf(escapes, Math.max(escapeCount * 2, 4));
+				escapes[escapeCount++] = i;
 				escaped = true;
 				continue;
 			}
-			if ((c == '"' || c == '\'') && !escaped && !inQuotes && currArg.length() == 0) {
-				currArg = new StringBuilder();
+			if ((c == '"' || c == '\'') && !escaped && !inQuotes && argLength == 0) {
+				argStart = i + 1;
 				inQuotes = true;
 				quoteChar = c;
 				continue;
 			}
 			escaped = false;
-			currArg.append(c);
+			argLength++;
 		}
-		if (!endedQuote && currArg.length() > 0) args.add((inQuotes ? quoteChar : "") + currArg.toString());
-		return args;
+		if (!endedQuote && argLength > 0){
+			if(size == starts.length){
+				starts = Arrays.copyOf(starts, size + 1);
+				ends = Arrays.copyOf(ends, size + 1);
+			}
+			// an unterminated quote keeps its quote character
+			starts[size] = inQuotes ? argStart - 1 : argStart;
+			ends[size++] = length;
+		}
+		return new ArgumentList(text, starts, ends, escapes, escapeCount, new String[size], 0, size);
+	}
+	
+	@NonNull
+	@Override
+	public String get(int index){
+		if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		int i = from + index;
+		String value = values[i];
+		if(value == null){
+			value = materialize(starts[i], ends[i]);
+			values[i] = value;
+		}
+		return value;
+	}
+	
+	@Override
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * @param start The start index of the argument in {@link #content}
+	 * @param end   The end index of the argument in {@link #content}
+	 * @return The argument with all escaping backslashes removed
+	 */
+	@NonNull
+	private String materialize(int start, int end){
+		int e = Arrays.binarySearch(escapes, 0, escapeCount, start);
+		if(e < 0) e = -e - 1;
+		if(e == escapeCount || escapes[e] >= end) return content.substring(start, end);
+		StringBuilder sb = new StringBuilder(end - start);
+		for(int i = start; i < end; i++){
+			if(e < escapeCount && escapes[e] == i) e++;
+			else sb.append(content.charAt(i));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * @param index The index of the argument
+	 * @return Whether the argument is empty, see {@link #isEmptyArgument(String)}
+	 */
+	private boolean isEmptyArgument(int index){
+		int i = from + index;
+		int rawLength = ends[i] - starts[i];
+		if(rawLength == 0) return true;
+		// an argument with a single character can span at most three characters of the content if escapes are involved
+		if(rawLength > 3) return false;
+		return isEmptyArgument(get(index));
 	}
 	
 	/**
@@ -100,7 +240,7 @@ public class ArgumentList extends ArrayList<String> {
 	public boolean hasNext(boolean skipEmpty){
 		if(!skipEmpty) return index < size();
 		int j = index;
-		while(j < size() && isEmptyArgument(get(j))){
+		while(j < size() && isEmptyArgument(j)){
 			j++;
 		}
 		return j < size();
@@ -173,7 +313,7 @@ public class ArgumentList extends ArrayList<String> {
 	private String getNext(boolean skipEmpty, boolean increment){
 		if(!skipEmpty) return get(increment ? index++ : index);
 		int j = index;
-		while(j < size() && isEmptyArgument(get(j))){
+		while(j < size() && isEmptyArgument(j)){
 			j++;
 		}
 		index = j;
@@ -220,7 +360,11 @@ public class ArgumentList extends ArrayList<String> {
 	 */
 	public int getFilteredSize(){
 		if(filteredSize != -1) return filteredSize;
-		filteredSize = (int)stream().filter(arg -> !isEmptyArgument(arg)).count();
+		int count = 0;
+		for(int i = 0; i < size; i++){
+			if(!isEmptyArgument(i)) count++;
+		}
+		filteredSize = count;
 		return filteredSize;
 	}
 	
@@ -245,20 +389,23 @@ public class ArgumentList extends ArrayList<String> {
 	}
 	
 	/**
-	 * Returns a view of the portion of this list between the specified {@code fromIndex}, inclusive, and {@code toIndex},
+	 * Returns the portion of this list between the specified {@code fromIndex}, inclusive, and {@code toIndex},
 	 * exclusive. (If {@code fromIndex} and {@code toIndex} are equal, the returned list is empty.)
 	 * <p>
-	 * Other than lists returned by {@link ArrayList#subList(int, int)}, the returned list is <b>NOT</b> backed by this
-	 * list, so non-structural changes in the returned list are NOT reflected in this list.
+	 * The returned list shares the parsed arguments with this list but has its own current index, starting at
+	 * {@code 0}.
 	 *
 	 * @param fromIndex low endpoint (inclusive) of the subList
 	 * @param toIndex   high endpoint (exclusive) of the subList
-	 * @return a copy of the specified range of the list
+	 * @return the specified range of the list
 	 */
 	@NonNull
 	@Override
 	public ArgumentList subList(int fromIndex, int toIndex) {
-		return new ArgumentList(super.subList(fromIndex, toIndex));
+		if(fromIndex < 0 || toIndex > size || fromIndex > toIndex){
+			throw new IndexOutOfBoundsException("fromIndex: " + fromIndex + ", toIndex: " + toIndex + ", Size: " + size);
+		}
+		return new ArgumentList(content, starts, ends, escapes, escapeCount, values, from + fromIndex, toIndex - fromIndex);
 	}
 	
 }
@@ -0,0 +1,188 @@
+package de.l0c4lh057.templatebot.commands;
+
+import de.l0c4lh057.templatebot.data.DiscordCache;
+import de.l0c4lh057.templatebot.data.MemberLoader;
+import de.l0c4lh057.templatebot.utils.BotUtils;
+import de.l0c4lh057.templatebot.utils.Permission;
+import de.l0c4lh057.templatebot.utils.exceptions.BotException;
+import de.l0c4lh057.templatebot.utils.ratelimits.NoRatelimit;
+import de.l0c4lh057.templatebot.utils.ratelimits.Ratelimit;
+import discord4j.common.util.Snowflake;
+import discord4j.rest.util.PermissionSet;
+import reactor.core.publisher.Mono;
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.stream.Collectors;
+
+/**
+ * The checks of a {@link Command} merged with the checks of all command collections on the path to it. Executing a
+ * sub command used to run all checks of every command collection on the way, this plan runs every configured check
+ * exactly once and skips checks that are not configured on the path at all.
+ * <p>
+ * Plans are compiled once per command tree, see {@link #compile(Command)}.
+ */
+class CheckPlan {
+	
+	private static final Ratelimit[] NO_RATELIMITS = new Ratelimit[0];
+	private static final Permission[] NO_PERMISSIONS = new Permission[0];
+	
+	@NonNull private final Command command;
+	/**
+	 * The number of arguments that got consumed by the sub command names on the path to the command
+	 */
+	private final int depth;
+	private final long permissionsNeededByBot;
+	private final boolean requiresBotOwner;
+	private final boolean usableInGuilds;
+	private final boolean usableInDMs;
+	@NonNull private final Ratelimit[] ratelimits;
+	@NonNull private final Permission[] requiredPermissions;
+	private final boolean requiresGuildOwner;
+	private final boolean nsfw;
+	/**
+	 * The plans of the sub commands if the command is a command collection
+	 */
+	@Nullable private final CommandTrie<CheckPlan> subPlans;
+	@Nullable private final CheckPlan unknownSubCommandPlan;
+	
+	private CheckPlan(@NonNull Command command, @Nullable CheckPlan parent, int depth){
+		this.command = command;
+		this.depth = depth;
+		if(parent == null){
+			this.permissionsNeededByBot = command.getPermissionsNeededByBot().getRawValue();
+			this.requiresBotOwner = command.requiresBotOwner();
+			this.usableInGuilds = command.isUsableInGuilds();
+			this.usableInDMs = command.isUsableInDMs();
+			this.ratelimits = command.getRatelimit() instanceof NoRatelimit ? NO_RATELIMITS : new Ratelimit[]{command.getRatelimit()};
+			this.requiredPermissions = command.getRequiredPermissions() == null ? NO_PERMISSIONS : new Permission[]{command.getRequiredPermissions()};
+			this.requiresGuildOwner = command.requiresGuildOwner();
+			this.nsfw = command.isNsfw();
+		}else{
+			this.permissionsNeededByBot = parent.permissionsNeededByBot | command.getPermissionsNeededByBot().getRawValue();
+			this.requiresBotOwner = parent.requiresBotOwner || command.requiresBotOwner();
+			this.usableInGuilds = parent.usableInGuilds && command.isUsableInGuilds();
+			this.usableInDMs = parent.usableInDMs && command.isUsableInDMs();
+			this.ratelimits = append(parent.ratelimits, command.getRatelimit() instanceof NoRatelimit ? null : command.getRatelimit());
+			this.requiredPermissions = append(parent.requiredPermissions, command.getRequiredPermissions());
+			this.requiresGuildOwner = parent.requiresGuildOwner || command.requiresGuildOwner();
+			this.nsfw = parent.nsfw || command.isNsfw();
+		}
+		Command unknownSubCommandHandler = command.getUnknownSubCommandHandler();
+		if(unknownSubCommandHandler == null){
+			this.subPlans = null;
+			this.unknownSubCommandPlan = null;
+		}else{
+			this.subPlans = command.getSubCommands().map(subCommand -> new CheckPlan(subCommand, this, depth + 1));
+			// the unknown sub command handler gets all arguments, including the one that did not match any sub command
+			this.unknownSubCommandPlan = new CheckPlan(unknownSubCommandHandler, this, depth);
+		}
+	}
+	
+	/**
+	 * @param values The values of the parent plan
+	 * @param value  The value of the command or null if it is not configured
+	 * @return The values with the new value appended if it is not null and not already contained
+	 */
+	@NonNull
+	private static <T> T[] append(@NonNull T[] values, @Nullable T value){
+		if(value == null || Arrays.asList(values).contains(value)) return values;
+		T[] result = Arrays.copyOf(values, values.length + 1);
+		result[values.length] = value;
+		return result;
+	}
+	
+	/**
+	 * Compiles the plans of a command and, if it is a command collection, of all its sub commands.
+	 *
+	 * @param command The root of the command tree
+	 * @return The {@link CheckPlan} of the command
+	 */
+	@NonNull
+	static CheckPlan compile(@NonNull Command command){
+		return new CheckPlan(command, null, 0);
+	}
+	
+	@NonNull Command getCommand(){ return command; }
+	int getDepth(){ return depth; }
+	
+	/**
+	 * Follows the sub command names in the arguments down to the command that should get executed.
+	 *
+	 * @param args The arguments passed to the command this plan got compiled for
+	 * @return The plan of the command that should get executed
+	 */
+	@NonNull
+	CheckPlan resolve(@NonNull List<String> args){
+		CheckPlan plan = this;
+		while(plan.unknownSubCommandPlan != null){
+			CheckPlan subPlan = args.size() > plan.depth ? plan.subPlans.get(args.get(plan.depth)) : null;
+			plan = subPlan == null ? plan.unknownSubCommandPlan : subPlan;
+		}
+		return plan;
+	}
+	
+	/**
+	 * Runs all checks of this plan. A failed check results in an error with the {@link BotException} describing it.
+	 *
+	 * @param context The {@link Context} of the command execution
+	 * @return An empty {@link Mono} that completes once all checks passed
+	 */
+	@NonNull
+	Mono<Void> check(@NonNull Context context){
+		Snowflake guildId = context.getGuildId().orElse(null);
+		if(guildId == null || permissionsNeededByBot == 0) return checkUser(context, guildId);
+		return getSelfPermissions(context, guildId)
+				.map(selfPermissions -> OptionalLong.of(permissionsNeededByBot & ~selfPermissions))
+				.defaultIfEmpty(OptionalLong.empty())
+				.flatMap(missingPermissions -> {
+					// bot needs certain permissions that is does not have
+					if(missingPermissions.isEmpty() || missingPermissions.getAsLong() != 0) return Mono.error(BotException.botMissingPermissions(
+							"exception.botmissingpermissions",
+							PermissionSet.of(permissionsNeededByBot).stream().map(perm -> "`" + perm.name() + "``").collect(Collectors.joining(", ")),
+							missingPermissions.isPresent()
+									? PermissionSet.of(missingPermissions.getAsLong()).stream().map(perm -> "`" + perm.name() + "`").collect(Collectors.joining(", "))
+									: "There was a caching problem and I could not get my own permissions. Please report this to the bot owner."
+					));
+					return checkUser(context, guildId);
+				});
+	}
+	
+	/**
+	 * @return A {@link Mono} emitting the raw permissions of the bot in the channel of the context, fetching the bot
+	 * member if it is not cached
+	 */
+	@NonNull
+	private static Mono<Long> getSelfPermissions(@NonNull Context context, @NonNull Snowflake guildId){
+		OptionalLong cached = DiscordCache.getGuild(guildId)
+				.map(guild -> guild.getSelfPermissions(context.getChannelId()))
+				.orElse(OptionalLong.empty());
+		if(cached.isPresent()) return Mono.just(cached.getAsLong());
+		return MemberLoader.getMember(context.getClient().getRestClient(), guildId, context.getClient().getSelfId())
+				.map(member -> member.getEffectivePermissions(context.getChannelId()).getRawValue());
+	}
+	
+	/**
+	 * Runs all checks of this plan that are about the author of the message.
+	 */
+	@NonNull
+	private Mono<Void> checkUser(@NonNull Context context, @Nullable Snowflake guildId){
+		Snowflake authorId = context.getAuthor().getId();
+		if(requiresBotOwner && !BotUtils.botOwners.contains(authorId)){
+			return Mono.error(BotException.notExecutable("exception.requiresbotowner"));
+		}else if(context.isGuildMessage() && !usableInGuilds){
+			return Mono.error(BotException.notExecutable("exception.notexecutableinguilds"));
+		}else if(context.isPrivateMessage() && !usableInDMs){
+			return Mono.error(BotException.notExecutable("exception.notexecutableindms"));
+		}
+		for(Ratelimit ratelimit : ratelimits){
+			if(ratelimit.isRatelimited(guildId, context.getChannelId(), authorId)) return Mono.error(BotException.ratelimited("exception.ratelimited"));
+		}
+		if(guildId == null || (requiredPermissions.length == 0 && !requiresGuildOwner && !nsfw)) return Mono.empty();
+		return PermissionManager.checkExecutability(guildId, authorId, context.getChannelId(), requiredPermissions, requiresGuildOwner, nsfw);
+	}
+	
+}
@@ -1,11 +1,11 @@
 package de.l0c4lh057.templatebot.commands;
 
-import de.l0c4lh057.templatebot.data.DiscordCache;
 import de.l0c4lh057.templatebot.utils.exceptions.*;
 import de.l0c4lh057.templatebot.utils.BotUtils;
 import de.l0c4lh057.templatebot.utils.Permission;
 import de.l0c4lh057.templatebot.utils.ratelimits.NoRatelimit;
 import de.l0c4lh057.templatebot.utils.ratelimits.Ratelimit;
+import de.l0c4lh057.templatebot.utils.ratelimits.RatelimitBackend;
 import de.l0c4lh057.templatebot.utils.ratelimits.RatelimitFactory;
 import de.l0c4lh057.templatebot.utils.ratelimits.RatelimitType;
 import discord4j.common.util.Snowflake;
@@ -22,7 +22,6 @@ import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 import static de.l0c4lh057.templatebot.utils.BotUtils.getLanguageString;
 
@@ -36,7 +35,8 @@ public class Command {
 	@NonNull private final CommandExecutor executor;
 	private final boolean usableInGuilds;
 	private final boolean usableInDMs;
-	@NonNull private final Map<String, Command> subCommands;
+	@NonNull private final CommandTrie<Command> subCommands;
+	@Nullable private final Command unknownSubCommandHandler;
 	private final int helpPagePosition;
 	private final boolean nsfw;
 	@NonNull private final Ratelimit ratelimit;
@@ -44,6 +44,7 @@ public class Command {
 	private final boolean requiresGuildOwner;
 	@Nullable private final Permission requiredPermissions;
 	@NonNull private final PermissionSet permissionsNeededByBot;
+	@Nullable private volatile CheckPlan checkPlan = null;
 	
 	Command(){
 		this(builder());
@@ -56,7 +57,8 @@ public class Command {
 		this.executor = builder.executor;
 		this.usableInGuilds = builder.usableInGuilds;
 		this.usableInDMs = builder.usableInDMs;
-		this.subCommands = Collections.emptyMap();
+		this.subCommands = new CommandTrie<>();
+		this.unknownSubCommandHandler = null;
 		this.helpPagePosition = builder.helpPagePosition;
 		this.nsfw = builder.nsfw;
 		this.ratelimit = builder.ratelimit;
@@ -73,6 +75,7 @@ public class Command {
 		this.usableInGuilds = builder.usableInGuilds;
 		this.usableInDMs = builder.usableInDMs;
 		this.subCommands = builder.subCommands;
+		this.unknownSubCommandHandler = builder.unknownSubCommandHandler;
 		this.helpPagePosition = builder.helpPagePosition;
 		this.nsfw = builder.nsfw;
 		this.ratelimit = builder.ratelimit;
@@ -80,10 +83,9 @@ public class Command {
 		this.requiresGuildOwner = builder.requiresGuildOwner;
 		this.requiredPermissions = builder.requiredPermissions;
 		this.permissionsNeededByBot = builder.permissionsNeededByBot;
-		Command unknownSubCommandHandler = builder.unknownSubCommandHandler;
 		this.executor = (context, language, prefix, args) -> {
 			if(!args.isEmpty()){
-				Command command = subCommands.get(args.get(0).toLowerCase());
+				Command command = subCommands.get(args.get(0));
 				if(command != null){
 					return command.execute(context, language, prefix, args.subList(1, args.size()), false);
 				}
@@ -104,12 +106,30 @@ public class Command {
 	public boolean isUsableInDMs(){ return usableInDMs; }
 	public boolean requiresBotOwner(){ return requiresBotOwner; }
 	public boolean requiresGuildOwner(){ return requiresGuildOwner; }
-	@Nullable public Command getSubCommand(@NonNull String subCommand){ return subCommands.get(subCommand.toLowerCase()); }
+	@Nullable public Command getSubCommand(@NonNull String subCommand){ return subCommands.get(subCommand); }
 	public int getHelpPagePosition(){ return helpPagePosition; }
 	public boolean isNsfw(){ return nsfw; }
 	@NonNull public Ratelimit getRatelimit(){ return ratelimit; }
 	@Nullable public Permission getRequiredPermissions(){ return requiredPermissions; }
 	@NonNull public PermissionSet getPermissionsNeededByBot(){ return permissionsNeededByBot; }
+	@NonNull CommandTrie<Command> getSubCommands(){ return subCommands; }
+	
+	/**
+	 * @return The handler for unknown sub commands or null if this command is not a command collection
+	 */
+	@Nullable Command getUnknownSubCommandHandler(){ return unknownSubCommandHandler; }
+	
+	/**
+	 * @return The {@link CheckPlan} of this command, compiling it if this command did not get registered
+	 */
+	@NonNull CheckPlan getCheckPlan(){
+		CheckPlan plan = checkPlan;
+		if(plan == null){
+			plan = CheckPlan.compile(this);
+			checkPlan = plan;
+		}
+		return plan;
+	}
 	
 	/**
 	 * This function checks if the user/guild is rate limited.
@@ -127,15 +147,19 @@ public class Command {
 	}
 	
 	/**
-	 * Adds this command with name and aliases as key to {@link Commands#commands}.
+	 * Adds this command with name and aliases as key to {@link Commands#commands} and {@link Commands#commandTrie}
+	 * and compiles its {@link CheckPlan}.
 	 */
 	public void register(){
 		if(Commands.getCommand(getName()) != null || Arrays.stream(aliases).anyMatch(alias -> Commands.getCommand(alias) != null)){
 			logger.warn("Command {} is already registered", getName());
 		}else{
+			checkPlan = CheckPlan.compile(this);
 			Commands.commands.put(getName().toLowerCase(), this);
+			Commands.commandTrie.put(getName(), this);
 			for (String alias : getAliases()) {
 				Commands.commands.put(alias.toLowerCase(), this);
+				Commands.commandTrie.put(alias, this);
 			}
 		}
 	}
@@ -165,32 +189,10 @@ public class Command {
 	 * is set to false.
 	 */
 	@NonNull private Mono<Void> execute(@NonNull Context context, @NonNull String language, @NonNull String prefix, @NonNull ArgumentList args, boolean handleExceptions){
-		Snowflake authorId = context.getAuthor().getId();
-		Mono<?> executionMono;
-		Optional<PermissionSet> missingPermissions = context.getGuildId().flatMap(DiscordCache::getGuild)
-				.flatMap(guild -> guild.getMember(context.getClient().getSelfId())
-						.map(member -> member.getEffectivePermissions(context.getChannelId()))
-						.map(effectivePermissions -> getPermissionsNeededByBot().andNot(effectivePermissions))
-				);
-		if(context.getGuildId().map(gId -> missingPermissions.map(permissions -> permissions.getRawValue() > 0).orElse(true)).orElse(false)){
-			// bot needs certain permissions that is does not have
-			executionMono = Mono.error(BotException.botMissingPermissions(
-					"exception.botmissingpermissions",
-					getPermissionsNeededByBot().stream().map(perm -> "`" + perm.name() + "``").collect(Collectors.joining(", ")),
-					missingPermissions.map(permissions -> permissions.stream().map(perm -> "`" + perm.name() + "`").collect(Collectors.joining(", "))).orElse("There was a caching problem and I could not get my own permissions. Please report this to the bot owner.")
-			));
-		}else if(requiresBotOwner() && !BotUtils.botOwners.contains(authorId)){
-			executionMono = Mono.error(BotException.notExecutable("exception.requiresbotowner"));
-		}else if(context.isGuildMessage() && !isUsableInGuilds()){
-			executionMono = Mono.error(BotException.notExecutable("exception.notexecutableinguilds"));
-		}else if(context.isPrivateMessage() && !isUsableInDMs()){
-			executionMono = Mono.error(BotException.notExecutable("exception.notexecutableindms"));
-		}else if(isRatelimited(context.getGuildId().orElse(null), context.getChannelId(), authorId)){
-			executionMono = Mono.error(BotException.ratelimited("exception.ratelimited"));
-		}else{
-			executionMono = PermissionManager.checkExecutability(context.getGuildId().orElse(null), authorId, context.getChannelId(), getRequiredPermissions(), requiresGuildOwner(), isNsfw())
-					.then(getExecutor().execute(context, language, prefix, args));
-		}
+		CheckPlan plan = getCheckPlan().resolve(args);
+		ArgumentList commandArgs = plan.getDepth() == 0 ? args : args.subList(plan.getDepth(), args.size());
+		Mono<?> executionMono = plan.check(context)
+				.then(Mono.defer(() -> plan.getCommand().getExecutor().execute(context, language, prefix, commandArgs)));
 		if(handleExceptions) return handleExceptions(executionMono, context, language, getName());
 		else return executionMono.then();
 	}
@@ -417,6 +419,33 @@ public class Command {
 			return this;
 		}
 		
+		/**
+		 * @param type       The {@link RatelimitType} for this {@link Ratelimit}
+		 * @param backend    The {@link RatelimitBackend} keeping the state of this {@link Ratelimit}
+		 * @param bandwidths The list of {@link Bandwidth}s
+		 * @return This {@link CommandBuilder} instance to allow chaining
+		 */
+		@NonNull
+		public CommandBuilder setRatelimit(@NonNull RatelimitType type, @NonNull RatelimitBackend backend, @NonNull Bandwidth... bandwidths){
+			this.ratelimit = RatelimitFactory.getRatelimit(type, backend, List.of(bandwidths));
+			return this;
+		}
+		
+		/**
+		 * Sets a {@link Ratelimit} that is shared by all bot processes using the same database.
+		 *
+		 * @param name      The name identifying the {@link Ratelimit} in all processes, has to be unique
+		 * @param type      The {@link RatelimitType} for this {@link Ratelimit}
+		 * @param bandwidth The {@link Bandwidth} of the {@link Ratelimit}
+		 * @return This {@link CommandBuilder} instance to allow chaining
+		 * @see RatelimitBackend#DISTRIBUTED
+		 */
+		@NonNull
+		public CommandBuilder setDistributedRatelimit(@NonNull String name, @NonNull RatelimitType type, @NonNull Bandwidth bandwidth){
+			this.ratelimit = RatelimitFactory.getRatelimit(name, type, RatelimitBackend.DISTRIBUTED, List.of(bandwidth));
+			return this;
+		}
+		
 		/**
 		 *
 		 * @param permissions The permissions needed by this bot to execute the command
@@ -442,7 +471,7 @@ public class Command {
 	public static class CommandCollectionBuilder {
 		private String name = "";
 		private String[] aliases = {};
-		private final Map<String, Command> subCommands = new HashMap<>();
+		private final CommandTrie<Command> subCommands = new CommandTrie<>();
 		private Command unknownSubCommandHandler = null;
 		private Command.Category category = Category.GENERAL;
 		private boolean usableInGuilds = true;
@@ -587,8 +616,8 @@ public class Command {
 			if(subCommands.get(command.getName()) != null || Arrays.stream(command.getAliases()).anyMatch(alias -> subCommands.get(alias) != null)){
 				logger.warn("Sub command {} of command {} already got registered", command.getName(), name);
 			}else{
-				subCommands.put(command.getName().toLowerCase(), command);
-				Arrays.stream(command.getAliases()).forEach(alias -> subCommands.put(alias.toLowerCase(), command));
+				subCommands.put(command.getName(), command);
+				Arrays.stream(command.getAliases()).forEach(alias -> subCommands.put(alias, command));
 			}
 			return this;
 		}
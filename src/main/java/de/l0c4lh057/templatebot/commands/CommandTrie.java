@@ -0,0 +1,123 @@
+package de.l0c4lh057.templatebot.commands;
+
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A case insensitive trie mapping command names and aliases to their {@link Command} (or anything derived from it). Lookups walk the passed
+ * {@link CharSequence} in place, so the message content does not need to get split or lowercased first.
+ * <p>
+ * Writes are only expected while registering commands, lookups are not synchronized.
+ */
+class CommandTrie<T> {
+	
+	private final Node<T> root = new Node<>();
+	
+	/**
+	 * @param name    The name or alias of the command
+	 * @param command The command
+	 * @return Whether the command got added, {@code false} if the name is already used by another command
+	 */
+	boolean put(@NonNull String name, @NonNull T command){
+		Node<T> node = root;
+		for(int i = 0; i < name.length(); i++){
+			node = node.getOrCreateChild(Character.toLowerCase(name.charAt(i)));
+		}
+		if(node.command != null) return false;
+		node.command = command;
+		return true;
+	}
+	
+	/**
+	 * @param name The name or alias of the command
+	 * @return The {@link Command} with the specified name or alias or null if there is none
+	 */
+	@Nullable
+	T get(@NonNull CharSequence name){
+		return get(name, 0, name.length());
+	}
+	
+	/**
+	 * @param content The content that contains the name of the command
+	 * @param start   The index of the first character of the name
+	 * @param end     The index after the last character of the name
+	 * @return The {@link Command} with the specified name or alias or null if there is none
+	 */
+	@Nullable
+	T get(@NonNull CharSequence content, int start, int end){
+		Node<T> node = root;
+		for(int i = start; i < end && node != null; i++){
+			node = node.getChild(Character.toLowerCase(content.charAt(i)));
+		}
+		return node == null ? null : node.command;
+	}
+	
+	/**
+	 * Creates a trie with the same names and aliases in which every value is mapped by the passed function. The
+	 * function is called only once per distinct value, so all aliases of a command map to the same result.
+	 *
+	 * @param mapper The function mapping the values of this trie
+	 * @param <R>    The type of the values of the new trie
+	 * @return The new {@link CommandTrie}
+	 */
+	@NonNull
+	<R> CommandTrie<R> map(@NonNull Function<T, R> mapper){
+		CommandTrie<R> trie = new CommandTrie<>();
+		copy(root, trie.root, mapper, new IdentityHashMap<>());
+		return trie;
+	}
+	
+	private static <T, R> void copy(@NonNull Node<T> from, @NonNull Node<R> to, @NonNull Function<T, R> mapper, @NonNull Map<T, R> mapped){
+		if(from.command != null) to.command = mapped.computeIfAbsent(from.command, mapper);
+		to.keys = from.keys.clone();
+		@SuppressWarnings("unchecked")
+		Node<R>[] children = (Node<R>[])new Node<?>[from.children.length];
+		for(int i = 0; i < children.length; i++){
+			children[i] = new Node<>();
+			copy(from.children[i], children[i], mapper, mapped);
+		}
+		to.children = children;
+	}
+	
+	private static class Node<T> {
+		/**
+		 * The lowercase characters of the children, sorted to allow binary search
+		 */
+		private char[] keys = new char[0];
+		@SuppressWarnings("unchecked")
+		private Node<T>[] children = (Node<T>[])new Node<?>[0];
+		@Nullable private T command = null;
+		
+		@Nullable
+		private Node<T> getChild(char c){
+			int index = Arrays.binarySearch(keys, c);
+			return index < 0 ? null : children[index];
+		}
+		
+		@NonNull
+		private Node<T> getOrCreateChild(char c){
+			int index = Arrays.binarySearch(keys, c);
+			if(index >= 0) return children[index];
+			index = -index - 1;
+			char[] newKeys = new char[keys.length + 1];
+			@SuppressWarnings("unchecked")
+			Node<T>[] newChildren = (Node<T>[])new Node<?>[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+			Node<T> child = new Node<>();
+			newKeys[index] = c;
+			newChildren[index] = child;
+			keys = newKeys;
+			children = newChildren;
+			return child;
+		}
+	}
+	
+}
@@ -38,6 +38,11 @@ public class Commands {
 	 */
 	static final Map<String, Command> commands = new HashMap<>();
 	
+	/**
+	 * The {@link CommandTrie} used to look up commands by name or alias without creating intermediate strings.
+	 */
+	static final CommandTrie<Command> commandTrie = new CommandTrie<>();
+	
 	/**
 	 * All commands should get registered in here. If any command is registered in another class (e.g. a music bot class
 	 * with which has its own function to register all commands) it should get called in this function.
@@ -263,7 +268,64 @@ public class Commands {
 	 */
 	@Nullable
 	public static Command getCommand(@NonNull String name){
-		return commands.get(name.toLowerCase());
+		return commandTrie.get(name);
+	}
+	
+	/**
+	 * Finds the command invoked by a message. The message has to start with either the prefix or a mention of the bot
+	 * followed by the name or an alias of the command. The name has to be followed by a space or the end of the message.
+	 *
+	 * @param content The content of the message
+	 * @param prefix  The prefix of the bot in the guild or DM channel the message got sent in
+	 * @param selfId  The ID of the bot as string
+	 * @return The {@link CommandMatch} or null if the message does not invoke any command
+	 */
+	@Nullable
+	public static CommandMatch matchCommand(@NonNull String content, @NonNull String prefix, @NonNull String selfId){
+		int start = getMentionLength(content, selfId);
+		if(start > 0){
+			if(start < content.length() && content.charAt(start) == ' ') start++;
+		}else if(content.startsWith(prefix)){
+			start = prefix.length();
+		}else{
+			return null;
+		}
+		int end = content.indexOf(' ', start);
+		if(end == start) return null;
+		Command command = commandTrie.get(content, start, end == -1 ? content.length() : end);
+		if(command == null) return null;
+		return new CommandMatch(command, end == -1 ? -1 : end + 1);
+	}
+	
+	/**
+	 * @param content The content of the message
+	 * @param selfId  The ID of the bot as string
+	 * @return The length of the mention of the bot at the start of the content or 0 if it does not start with a mention
+	 */
+	private static int getMentionLength(@NonNull String content, @NonNull String selfId){
+		if(!content.startsWith("<@")) return 0;
+		int index = content.startsWith("!", 2) ? 3 : 2;
+		if(!content.startsWith(selfId, index)) return 0;
+		index += selfId.length();
+		return content.startsWith(">", index) ? index + 1 : 0;
+	}
+	
+	/**
+	 * The result of {@link #matchCommand(String, String, String)}
+	 */
+	public static class CommandMatch {
+		@NonNull private final Command command;
+		private final int argumentOffset;
+		private CommandMatch(@NonNull Command command, int argumentOffset){
+			this.command = command;
+			this.argumentOffset = argumentOffset;
+		}
+		@NonNull public Command getCommand(){ return command; }
+		
+		/**
+		 * @return The index in the message content at which the arguments start or -1 if there are no arguments
+		 */
+		public int getArgumentOffset(){ return argumentOffset; }
 	}
 	
 	/**
@@ -1,53 +1,108 @@
 package de.l0c4lh057.templatebot.commands;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import de.l0c4lh057.templatebot.utils.exceptions.BotException;
 import de.l0c4lh057.templatebot.data.DataHandler;
 import de.l0c4lh057.templatebot.data.DiscordCache;
+import de.l0c4lh057.templatebot.data.MemberLoader;
 import discord4j.common.util.Snowflake;
 import discord4j.rest.util.Permission;
 import discord4j.rest.util.PermissionSet;
 import io.r2dbc.spi.Row;
-import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class PermissionManager {
 	
+	// TODO: adjust cache size
+	private static final long MAX_CACHED_GUILDS = 10_000;
+	
+	private static final de.l0c4lh057.templatebot.utils.Permission[] NO_PERMISSIONS = new de.l0c4lh057.templatebot.utils.Permission[0];
+	
+	/**
+	 * The compiled permission rules of every guild. Guilds without any rules are cached as well
+	 * ({@link GuildPermissions#NONE}) so that they don't cause database queries either.
+	 */
+	private static final AsyncLoadingCache<Long, GuildPermissions> guildPermissions = Caffeine.newBuilder()
+			.maximumSize(MAX_CACHED_GUILDS)
+			.recordStats()
+			.buildAsync((guildId, executor) -> DataHandler.getPermissions(Snowflake.of(guildId))
+					.collectList()
+					.map(GuildPermissions::compile)
+					.toFuture()
+			);
+	
+	/**
+	 * Removes the cached permission rules of a guild. This has to be called whenever permission rules of the guild
+	 * get changed in the database.
+	 *
+	 * @param guildId The ID of the guild whose rules changed
+	 */
+	public static void invalidate(@NonNull Snowflake guildId){
+		guildPermissions.synchronous().invalidate(guildId.asLong());
+	}
+	
+	/**
+	 * @return The hit, miss and load statistics of the permission rule cache
+	 */
 	@NonNull
-	private static Mono<Void> checkExecutability(@NonNull Snowflake guildId, @NonNull Snowflake userId, @NonNull List<Snowflake> roleIds, @NonNull PermissionSet effectivePermissions, @Nullable de.l0c4lh057.templatebot.utils.Permission requiredPermissions){
+	public static CacheStats getCacheStats(){
+		return guildPermissions.synchronous().stats();
+	}
+	
+	@NonNull
+	private static de.l0c4lh057.templatebot.utils.Permission[] toArray(@Nullable de.l0c4lh057.templatebot.utils.Permission permission){
+		return permission == null ? NO_PERMISSIONS : new de.l0c4lh057.templatebot.utils.Permission[]{permission};
+	}
+	
+	@NonNull
+	private static Mono<Void> checkExecutability(@NonNull Snowflake guildId, @NonNull Snowflake userId, @NonNull List<Snowflake> roleIds, @NonNull PermissionSet effectivePermissions, @NonNull de.l0c4lh057.templatebot.utils.Permission[] requiredPermissions){
 		if(DiscordCache.getGuild(guildId).map(DiscordCache.MinimalGuild::getOwnerId).map(userId::equals).orElse(false)) return Mono.empty();
-		if(requiredPermissions == null) return Mono.empty();
-		return DataHandler.getPermissions(requiredPermissions.getPermissionName(), guildId)
-				.groupBy(CommandPermission::isUser)
-				.flatMap(rolePermissions -> rolePermissions.groupBy(CommandPermission::isWhitelist)
-						.flatMap(Flux::collectList)
-				)
-				.collectList()
-				.flatMap(lists -> {
-					boolean onUserBlacklist = lists.stream().filter(perms -> perms.size() > 0 && perms.get(0).isUser() && perms.get(0).isBlacklist()).findAny().map(perms -> perms.stream().anyMatch(perm -> perm.getTargetId().equals(userId))).orElse(false);
-					List<Snowflake> userWhitelist = lists.stream().filter(perms -> perms.size() > 0 && perms.get(0).isUser() && perms.get(0).isWhitelist()).findAny().orElseGet(Collections::emptyList).stream().map(CommandPermission::getTargetId).collect(Collectors.toList());
-					List<Snowflake> roleWhitelist = lists.stream().filter(perms -> perms.size() > 0 && perms.get(0).isRole() && perms.get(0).isWhitelist()).findAny().orElseGet(Collections::emptyList).stream().map(CommandPermission::getTargetId).collect(Collectors.toList());
-					List<Snowflake> roleBlacklist = lists.stream().filter(perms -> perms.size() > 0 && perms.get(0).isRole() && perms.get(0).isBlacklist()).findAny().orElseGet(Collections::emptyList).stream().map(CommandPermission::getTargetId).collect(Collectors.toList());
-					boolean hasPerms = effectivePermissions.contains(Permission.ADMINISTRATOR);
-					if(onUserBlacklist) return Mono.error(BotException.missingPermissions("exception.missingpermissions"));
-					boolean blacklisted = false;
-					if(!hasPerms && roleIds.stream().anyMatch(roleWhitelist::contains)) hasPerms = true;
-					if(hasPerms && roleIds.stream().anyMatch(roleBlacklist::contains)){
-						blacklisted = true;
-						hasPerms = false;
-					}
-					if(!hasPerms && userWhitelist.stream().anyMatch(userId::equals)) hasPerms = true;
-					if(!hasPerms && !blacklisted && userWhitelist.isEmpty() && roleWhitelist.isEmpty()){
-						if(requiredPermissions.getDefaultPermissions().containsAll(effectivePermissions)) hasPerms = true;
-					}
-					if(hasPerms) return Mono.empty();
-					else return Mono.error(BotException.missingPermissions("exception.missingpermissions"));
-				});
+		if(requiredPermissions.length == 0) return Mono.empty();
+		CompletableFuture<GuildPermissions> permissions = guildPermissions.get(guildId.asLong());
+		// the rules are cached in most cases, so they can be checked without creating a reactive chain
+		if(permissions.isDone() && !permissions.isCompletedExceptionally()){
+			return checkExecutability(permissions.join(), userId, roleIds, effectivePermissions, requiredPermissions);
+		}
+		return Mono.fromFuture(permissions)
+				.flatMap(perms -> checkExecutability(perms, userId, roleIds, effectivePermissions, requiredPermissions));
+	}
+	
+	@NonNull
+	private static Mono<Void> checkExecutability(@NonNull GuildPermissions guildPermissions, @NonNull Snowflake userId, @NonNull List<Snowflake> roleIds, @NonNull PermissionSet effectivePermissions, @NonNull de.l0c4lh057.templatebot.utils.Permission[] requiredPermissions){
+		for(de.l0c4lh057.templatebot.utils.Permission requiredPermission : requiredPermissions){
+			if(!hasPermission(guildPermissions, userId, roleIds, effectivePermissions, requiredPermission)){
+				return Mono.error(BotException.missingPermissions("exception.missingpermissions"));
+			}
+		}
+		return Mono.empty();
+	}
+	
+	private static boolean hasPermission(@NonNull GuildPermissions guildPermissions, @NonNull Snowflake userId, @NonNull List<Snowflake> roleIds, @NonNull PermissionSet effectivePermissions, @NonNull de.l0c4lh057.templatebot.utils.Permission requiredPermissions){
+		PermissionRules rules = guildPermissions.getRules(requiredPermissions.getPermissionName());
+		if(rules.isUserBlacklisted(userId.asLong())) return false;
+		boolean hasPerms = effectivePermissions.contains(Permission.ADMINISTRATOR);
+		boolean blacklisted = false;
+		if(!hasPerms && rules.isAnyRoleWhitelisted(roleIds)) hasPerms = true;
+		if(hasPerms && rules.isAnyRoleBlacklisted(roleIds)){
+			blacklisted = true;
+			hasPerms = false;
+		}
+		if(!hasPerms && rules.isUserWhitelisted(userId.asLong())) hasPerms = true;
+		if(!hasPerms && !blacklisted && !rules.hasWhitelist()){
+			if(effectivePermissions.containsAll(requiredPermissions.getDefaultPermissions())) hasPerms = true;
+		}
+		return hasPerms;
 	}
 	
 	/**
@@ -63,8 +118,26 @@ public class PermissionManager {
 	public static Mono<Void> checkExecutability(@Nullable Snowflake guildId, @NonNull Snowflake userId,
 	                                            @NonNull Snowflake channelId, @Nullable de.l0c4lh057.templatebot.utils.Permission permission,
 	                                            boolean requiresGuildOwner, boolean requiresNsfwChannel){
+		return checkExecutability(guildId, userId, channelId, toArray(permission), requiresGuildOwner, requiresNsfwChannel);
+	}
+	
+	/**
+	 * Checks multiple permissions at once, fetching the member and the permission rules of the guild only once.
+	 *
+	 * @param guildId             The ID of the guild or null if the check is done in DMs
+	 * @param userId              The ID of the user
+	 * @param channelId           The ID of the channel
+	 * @param permissions         The permissions the user needs to have, all of them have to be granted
+	 * @param requiresGuildOwner  Whether the user has to be the owner of the guild
+	 * @param requiresNsfwChannel Whether the channel has to be marked as NSFW
+	 * @return An empty {@link Mono} if the user has the needed permissions, otherwise a {@link Mono} containing a
+	 * {@link BotException} describing why the permissions are missing.
+	 */
+	public static Mono<Void> checkExecutability(@Nullable Snowflake guildId, @NonNull Snowflake userId,
+	                                            @NonNull Snowflake channelId, @NonNull de.l0c4lh057.templatebot.utils.Permission[] permissions,
+	                                            boolean requiresGuildOwner, boolean requiresNsfwChannel){
 		if(guildId == null) return Mono.empty();
-		return Mono.justOrEmpty(DiscordCache.getGuild(guildId).flatMap(guild -> guild.getMember(userId)))
+		return MemberLoader.getMember(guildId, userId)
 				.switchIfEmpty(Mono.error(BotException.missingPermissions("exception.notcached")))
 				.flatMap(member -> {
 					if(member.getGuild().getOwnerId().equals(member.getId())) return Mono.empty();
@@ -76,7 +149,7 @@ public class PermissionManager {
 								userId,
 								member.getRoles().map(DiscordCache.MinimalRole::getId).collect(Collectors.toList()),
 								member.getEffectivePermissions(channelId),
-								permission
+								permissions
 						);
 				});
 	}
@@ -109,7 +182,7 @@ public class PermissionManager {
 	public static Mono<Void> checkExecutability(@Nullable Snowflake guildId, @NonNull Snowflake userId,
 	                                            @NonNull de.l0c4lh057.templatebot.utils.Permission permission, boolean requiresGuildOwner){
 		if(guildId == null) return Mono.empty();
-		return Mono.justOrEmpty(DiscordCache.getGuild(guildId).flatMap(guild -> guild.getMember(userId)))
+		return MemberLoader.getMember(guildId, userId)
 				.switchIfEmpty(Mono.error(BotException.missingPermissions("exception.notcached")))
 				.flatMap(member -> {
 					if(member.getGuild().getOwnerId().equals(member.getId())) return Mono.empty();
@@ -119,22 +192,25 @@ public class PermissionManager {
 								userId,
 								member.getRoles().map(DiscordCache.MinimalRole::getId).collect(Collectors.toList()),
 								member.getBasePermissions(),
-								permission
+								toArray(permission)
 						);
 				});
 	}
 	
 	public static class CommandPermission {
+		private final String permissionName;
 		private final Snowflake targetId;
 		private final boolean isWhitelist;
 		private final boolean isUser;
 		
-		private CommandPermission(Snowflake targetId, boolean isWhitelist, boolean isUser){
+		private CommandPermission(String permissionName, Snowflake targetId, boolean isWhitelist, boolean isUser){
+			this.permissionName = permissionName;
 			this.targetId = targetId;
 			this.isWhitelist = isWhitelist;
 			this.isUser = isUser;
 		}
 		
+		public String getPermissionName(){ return permissionName; }
 		public Snowflake getTargetId(){ return targetId; }
 		public boolean isWhitelist(){ return isWhitelist; }
 		public boolean isBlacklist(){ return !isWhitelist; }
@@ -147,6 +223,7 @@ public class PermissionManager {
 		 */
 		public static CommandPermission ofRow(@NonNull Row row){
 			return new CommandPermission(
+					row.get("permissionName", String.class),
 					Snowflake.of(row.get("targetId", Long.class)),
 					row.get("isWhitelist", Boolean.class),
 					row.get("isUser", Boolean.class)
@@ -154,4 +231,74 @@ public class PermissionManager {
 		}
 	}
 	
+	/**
+	 * All permission rules of a single guild, compiled into an immutable structure.
+	 */
+	private static class GuildPermissions {
+		private static final GuildPermissions NONE = new GuildPermissions(Collections.emptyMap());
+		private final Map<String, PermissionRules> rules;
+		private GuildPermissions(@NonNull Map<String, PermissionRules> rules){
+			this.rules = rules;
+		}
+		@NonNull
+		private PermissionRules getRules(@NonNull String permissionName){
+			return rules.getOrDefault(permissionName, PermissionRules.NONE);
+		}
+		@NonNull
+		private static GuildPermissions compile(@NonNull List<CommandPermission> permissions){
+			if(permissions.isEmpty()) return NONE;
+			Map<String, PermissionRules> rules = permissions.stream()
+					.collect(Collectors.groupingBy(CommandPermission::getPermissionName, Collectors.collectingAndThen(Collectors.toList(), PermissionRules::compile)));
+			return new GuildPermissions(Map.copyOf(rules));
+		}
+	}
+	
+	/**
+	 * The black- and whitelists of a single permission in a guild, stored as sorted arrays of IDs.
+	 */
+	private static class PermissionRules {
+		private static final long[] EMPTY = new long[0];
+		private static final PermissionRules NONE = new PermissionRules(EMPTY, EMPTY, EMPTY, EMPTY);
+		private final long[] userWhitelist;
+		private final long[] userBlacklist;
+		private final long[] roleWhitelist;
+		private final long[] roleBlacklist;
+		private PermissionRules(long[] userWhitelist, long[] userBlacklist, long[] roleWhitelist, long[] roleBlacklist){
+			this.userWhitelist = userWhitelist;
+			this.userBlacklist = userBlacklist;
+			this.roleWhitelist = roleWhitelist;
+			this.roleBlacklist = roleBlacklist;
+		}
+		private boolean isUserWhitelisted(long userId){ return Arrays.binarySearch(userWhitelist, userId) >= 0; }
+		private boolean isUserBlacklisted(long userId){ return Arrays.binarySearch(userBlacklist, userId) >= 0; }
+		private boolean isAnyRoleWhitelisted(@NonNull List<Snowflake> roleIds){ return containsAny(roleWhitelist, roleIds); }
+		private boolean isAnyRoleBlacklisted(@NonNull List<Snowflake> roleIds){ return containsAny(roleBlacklist, roleIds); }
+		private boolean hasWhitelist(){ return userWhitelist.length > 0 || roleWhitelist.length > 0; }
+		private static boolean containsAny(@NonNull long[] sortedIds, @NonNull List<Snowflake> ids){
+			if(sortedIds.length == 0) return false;
+			for(int i = 0; i < ids.size(); i++){
+				if(Arrays.binarySearch(sortedIds, ids.get(i).asLong()) >= 0) return true;
+			}
+			return false;
+		}
+		@NonNull
+		private static PermissionRules compile(@NonNull List<CommandPermission> permissions){
+			return new PermissionRules(
+					sortedIds(permissions, true, true),
+					sortedIds(permissions, true, false),
+					sortedIds(permissions, false, true),
+					sortedIds(permissions, false, false)
+			);
+		}
+		@NonNull
+		private static long[] sortedIds(@NonNull List<CommandPermission> permissions, boolean isUser, boolean isWhitelist){
+			long[] ids = permissions.stream()
+					.filter(perm -> perm.isUser() == isUser && perm.isWhitelist() == isWhitelist)
+					.mapToLong(perm -> perm.getTargetId().asLong())
+					.sorted()
+					.toArray();
+			return ids.length == 0 ? EMPTY : ids;
+		}
+	}
+	
 }
@@ -23,6 +23,24 @@ public class DBGuild {
 	@NonNull public String getPrefix(){ return prefix; }
 	@NonNull public String getLanguage() { return language; }
 	
+	/**
+	 * @param prefix The new prefix
+	 * @return A copy of this {@link DBGuild} with the prefix replaced
+	 */
+	@NonNull
+	public DBGuild withPrefix(@NonNull String prefix){
+		return new DBGuild(id, prefix, language);
+	}
+	
+	/**
+	 * @param language The new language
+	 * @return A copy of this {@link DBGuild} with the language replaced
+	 */
+	@NonNull
+	public DBGuild withLanguage(@NonNull String language){
+		return new DBGuild(id, prefix, language);
+	}
+	
 	/**
 	 * @param row The {@link Row} to get the data from
 	 * @return A new {@link DBGuild} based on the values of the {@link Row}
@@ -30,7 +48,7 @@ public class DBGuild {
 	@NonNull
 	public static DBGuild ofRow(@NonNull Row row){
 		return new DBGuild(
-				Snowflake.of(row.get("guildId", Integer.class)),
+				Snowflake.of(row.get("guildId", Long.class)),
 				row.get("prefix", String.class),
 				row.get("language", String.class)
 		);
@@ -23,6 +23,24 @@ public class DBUser {
 	@NonNull public String getPrefix(){ return prefix; }
 	@NonNull public String getLanguage() { return language; }
 	
+	/**
+	 * @param prefix The new prefix
+	 * @return A copy of this {@link DBUser} with the prefix replaced
+	 */
+	@NonNull
+	public DBUser withPrefix(@NonNull String prefix){
+		return new DBUser(id, prefix, language);
+	}
+	
+	/**
+	 * @param language The new language
+	 * @return A copy of this {@link DBUser} with the language replaced
+	 */
+	@NonNull
+	public DBUser withLanguage(@NonNull String language){
+		return new DBUser(id, prefix, language);
+	}
+	
 	/**
 	 * @param row The {@link Row} to get the data from
 	 * @return A new {@link DBUser} based on the values of the {@link Row}
@@ -30,7 +48,7 @@ public class DBUser {
 	@NonNull
 	public static DBUser ofRow(@NonNull Row row){
 		return new DBUser(
-				Snowflake.of(row.get("userId", Integer.class)),
+				Snowflake.of(row.get("userId", Long.class)),
 				row.get("prefix", String.class),
 				row.get("language", String.class)
 		);
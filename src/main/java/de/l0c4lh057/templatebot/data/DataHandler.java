@@ -2,23 +2,30 @@ package de.l0c4lh057.templatebot.data;
 
 import de.l0c4lh057.templatebot.commands.PermissionManager;
 import de.l0c4lh057.templatebot.main.Credentials;
+import de.l0c4lh057.templatebot.utils.LatencyHistogram;
 import discord4j.common.util.Snowflake;
 import io.r2dbc.pool.ConnectionPool;
 import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.pool.PoolMetrics;
 import io.r2dbc.postgresql.PostgresqlConnectionConfiguration;
 import io.r2dbc.postgresql.PostgresqlConnectionFactory;
 import io.r2dbc.spi.Connection;
 import io.r2dbc.spi.Result;
-import io.r2dbc.spi.ValidationDepth;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reactivestreams.Publisher;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 public class DataHandler {
@@ -44,33 +51,126 @@ public class DataHandler {
 		pool = new ConnectionPool(configuration);
 	}
 	
+	// TODO: adjust leak detection, a threshold of zero disables it
 	/**
-	 * Gets one of the {@link Connection}s inside {@link #pool}.
+	 * Connections held longer than this are logged together with the place where they got acquired
+	 */
+	private static final Duration LEAK_DETECTION_THRESHOLD = Duration.ofSeconds(30);
+	private static final Duration LEAK_CHECK_INTERVAL = Duration.ofSeconds(10);
+	
+	private static final Map<Connection, Lease> leases = new ConcurrentHashMap<>();
+	private static final LatencyHistogram acquireLatency = new LatencyHistogram();
+	private static final LatencyHistogram guildBatchLatency = new LatencyHistogram();
+	private static Disposable leakDetector = null;
+	
+	/**
+	 * Gets one of the {@link Connection}s inside {@link #pool} and keeps track of it for leak detection.
+	 * <p>
+	 * Connections should only be acquired by {@link #useConnection(Function)} and {@link #useConnectionMany(Function)}
+	 * which make sure that they get released again.
 	 *
 	 * @return A database connection
 	 */
 	@NonNull
 	private static Mono<Connection> getConnection(){
-		return pool.create();
+		// the stack trace is taken on assembly, so it points to the DataHandler function that wants the connection
+		Throwable callSite = LEAK_DETECTION_THRESHOLD.isZero() ? null : new Throwable("Connection acquired here");
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			return pool.create().doOnNext(con -> {
+				acquireLatency.recordSince(start);
+				leases.put(con, new Lease(callSite));
+			});
+		});
 	}
 	
+	/**
+	 * Returns the connection to the pool.
+	 *
+	 * @param con The connection that got acquired by {@link #getConnection()}
+	 * @return A {@link Mono} completing once the connection got released
+	 */
 	@NonNull
-	private static <T> Mono<T> useConnection(Function<Connection, Mono<T>> function){
-		return getConnection().flatMap(con -> function.apply(con)
-				.flatMap(item -> Mono.from(con.validate(ValidationDepth.LOCAL))
-						.flatMap(validation -> validation ? Mono.from(con.close()).thenReturn(item) : Mono.just(item))
-				)
-		);
+	private static Mono<Void> releaseConnection(@NonNull Connection con){
+		leases.remove(con);
+		return Mono.from(con.close());
+	}
+	
+	/**
+	 * Runs the function with a connection of the pool. The connection is always released, no matter if the returned
+	 * {@link Mono} completes, errors or gets cancelled.
+	 *
+	 * @param function The function using the connection
+	 * @return The {@link Mono} returned by the function
+	 */
+	@NonNull
+	private static <T> Mono<T> useConnection(@NonNull Function<Connection, Mono<T>> function){
+		return Mono.usingWhen(getConnection(), function, DataHandler::releaseConnection, (con, err) -> releaseConnection(con), DataHandler::releaseConnection);
+	}
+	
+	/**
+	 * Runs the function with a connection of the pool. The connection is always released, no matter if the returned
+	 * {@link Flux} completes, errors or gets cancelled.
+	 *
+	 * @param function The function using the connection
+	 * @return The {@link Publisher} returned by the function as {@link Flux}
+	 */
+	@NonNull
+	private static <T> Flux<T> useConnectionMany(@NonNull Function<Connection, Publisher<T>> function){
+		return Flux.usingWhen(getConnection(), function, DataHandler::releaseConnection, (con, err) -> releaseConnection(con), DataHandler::releaseConnection);
+	}
+	
+	/**
+	 * Logs all connections that are held for longer than {@link #LEAK_DETECTION_THRESHOLD}. Every connection is only
+	 * logged once.
+	 */
+	private static void detectLeaks(){
+		long now = System.nanoTime();
+		leases.values().forEach(lease -> {
+			if(!lease.reported && now - lease.acquiredAt > LEAK_DETECTION_THRESHOLD.toNanos()){
+				lease.reported = true;
+				logger.warn("Database connection held for more than {}s, it might have leaked", LEAK_DETECTION_THRESHOLD.toSeconds(), lease.callSite);
+			}
+		});
+	}
+	
+	/**
+	 * @return The live metrics of the connection pool, containing the amount of acquired and idle connections and the
+	 * amount of pending acquirers
+	 */
+	@NonNull
+	public static Optional<PoolMetrics> getPoolMetrics(){
+		return pool.getMetrics();
+	}
+	
+	/**
+	 * @return The {@link LatencyHistogram} of the time it took to acquire a connection from the pool
+	 */
+	@NonNull
+	public static LatencyHistogram getAcquireLatency(){
+		return acquireLatency;
 	}
 	
 	public static Mono<Void> disconnect(){
-		return pool.disposeLater();
+		return Mono.fromRunnable(() -> {
+			if(leakDetector != null) leakDetector.dispose();
+		}).then(pool.disposeLater());
+	}
+	
+	private static class Lease {
+		private final long acquiredAt = System.nanoTime();
+		private final Throwable callSite;
+		private volatile boolean reported = false;
+		private Lease(@Nullable Throwable callSite){
+			this.callSite = callSite;
+		}
 	}
 	
 	private enum Tables {
 		GUILDS("guilds"),
 		USERS("users"),
-		PERMISSIONS("permissions")
+		PERMISSIONS("permissions"),
+		RATELIMITS("ratelimits")
 		;
 		private final String name;
 		Tables(@NonNull String name){
@@ -109,12 +209,24 @@ public class DataHandler {
 				"isWhitelist BOOLEAN," +
 				"PRIMARY KEY(permissionName, guildId, targetId, isUser)" +
 				")";
-		return useConnection(con -> Mono.from(con.createBatch()
+		String createRatelimitsTable = "CREATE TABLE IF NOT EXISTS " + Tables.RATELIMITS.getName() + " (" +
+				"name TEXT," +
+				"id1 BIGINT," +
+				"id2 BIGINT," +
+				"tat BIGINT," +
+				"granted BIGINT," +
+				"PRIMARY KEY(name, id1, id2)" +
+				")";
+		if(!LEAK_DETECTION_THRESHOLD.isZero() && leakDetector == null){
+			leakDetector = Flux.interval(LEAK_CHECK_INTERVAL).subscribe(i -> detectLeaks());
+		}
+		return useConnectionMany(con -> con.createBatch()
 				.add(createGuildsTable)
 				.add(createUsersTable)
 				.add(createPermissionsTable)
+				.add(createRatelimitsTable)
 				.execute()
-		).then());
+		).flatMap(Result::getRowsUpdated).then();
 	}
 	
 	/**
@@ -126,7 +238,7 @@ public class DataHandler {
 	 */
 	@NonNull
 	public static Mono<Boolean> initializeGuild(@NonNull Snowflake guildId){
-		return getConnection().flatMap(con -> Mono.from(con.createStatement("INSERT INTO " + Tables.GUILDS.getName() + " (guildId, prefix, language) VALUES ($1, $2, $3) ON CONFLICT DO NOTHING")
+		return useConnection(con -> Mono.from(con.createStatement("INSERT INTO " + Tables.GUILDS.getName() + " (guildId, prefix, language) VALUES ($1, $2, $3) ON CONFLICT DO NOTHING")
 				.bind("$1", guildId.asLong())
 				.bind("$2", DBGuild.defaultGuild.getPrefix())
 				.bind("$3", DBGuild.defaultGuild.getLanguage())
@@ -136,6 +248,40 @@ public class DataHandler {
 		);
 	}
 	
+	/**
+	 * Puts the default values into the database for all provided IDs using a single statement. Guilds that are already
+	 * saved are left untouched.
+	 *
+	 * @param guildIds The IDs of the guilds that should get put into the database
+	 * @return A {@link Mono} that upon success emits the amount of guilds that got inserted into the database
+	 */
+	@NonNull
+	public static Mono<Integer> initializeGuilds(@NonNull Collection<Snowflake> guildIds){
+		if(guildIds.isEmpty()) return Mono.just(0);
+		Long[] ids = guildIds.stream().map(Snowflake::asLong).toArray(Long[]::new);
+		return Mono.defer(() -> {
+			long start = System.nanoTime();
+			return useConnection(con -> Mono.from(con.createStatement("INSERT INTO " + Tables.GUILDS.getName() + " (guildId, prefix, language) SELECT id, $2, $3 FROM unnest($1::BIGINT[]) AS id ON CONFLICT DO NOTHING")
+					.bind("$1", ids)
+					.bind("$2", DBGuild.defaultGuild.getPrefix())
+					.bind("$3", DBGuild.defaultGuild.getLanguage())
+					.execute())
+					.flatMapMany(Result::getRowsUpdated).next()
+			).doOnNext(inserted -> {
+				guildBatchLatency.recordSince(start);
+				logger.debug("Initialized batch of {} guilds ({} new) in {}ms", ids.length, inserted, (System.nanoTime() - start) / 1_000_000);
+			});
+		});
+	}
+	
+	/**
+	 * @return The {@link LatencyHistogram} of the batches executed by {@link #initializeGuilds(Collection)}
+	 */
+	@NonNull
+	public static LatencyHistogram getGuildBatchLatency(){
+		return guildBatchLatency;
+	}
+	
 	/**
 	 * Puts the default values into the database for the provided ID. Nothing happens if the user is already saved.
 	 *
@@ -145,7 +291,7 @@ public class DataHandler {
 	 */
 	@NonNull
 	public static Mono<Boolean> initializeUser(@NonNull Snowflake userId){
-		return getConnection().flatMap(con -> Mono.from(con.createStatement("INSERT INTO " + Tables.USERS.getName() + " (userId, prefix, language) VALUES ($1, $2, $3) ON CONFLICT DO NOTHING")
+		return useConnection(con -> Mono.from(con.createStatement("INSERT INTO " + Tables.USERS.getName() + " (userId, prefix, language) VALUES ($1, $2, $3) ON CONFLICT DO NOTHING")
 				.bind("$1", userId.asLong())
 				.bind("$2", DBUser.defaultUser.getPrefix())
 				.bind("$3", DBUser.defaultUser.getLanguage())
@@ -163,7 +309,7 @@ public class DataHandler {
 	 */
 	@NonNull
 	public static Mono<DBGuild> getGuild(@NonNull Snowflake guildId){
-		return getConnection().flatMap(con -> Mono.from(con.createStatement("SELECT * FROM " + Tables.GUILDS.getName() + " WHERE guildId=$1 LIMIT 1")
+		return useConnection(con -> Mono.from(con.createStatement("SELECT * FROM " + Tables.GUILDS.getName() + " WHERE guildId=$1 LIMIT 1")
 				.bind("$1", guildId.asLong())
 				.execute())
 				.flatMap(result -> Mono.from(result.map((row, rowMetadata) -> DBGuild.ofRow(row))))
@@ -194,7 +340,7 @@ public class DataHandler {
 	 */
 	@NonNull
 	public static Mono<DBUser> getUser(@NonNull Snowflake userId){
-		return getConnection().flatMap(con -> Mono.from(con.createStatement("SELECT * FROM " + Tables.USERS.getName() + " WHERE userId=$1 LIMIT 1")
+		return useConnection(con -> Mono.from(con.createStatement("SELECT * FROM " + Tables.USERS.getName() + " WHERE userId=$1 LIMIT 1")
 				.bind("$1", userId.asLong())
 				.execute())
 				.flatMap(result -> Mono.from(result.map((row, rowMetadata) -> DBUser.ofRow(row))))
@@ -218,19 +364,77 @@ public class DataHandler {
 	}
 	
 	/**
-	 * Retrieves all black- and whitelisted users and roles for the permission in the provided guild.
+	 * Leases tokens of a ratelimit shared by all processes using this database. The ratelimit is stored as theoretical
+	 * arrival time (TAT) of the generic cell rate algorithm in microseconds of the database clock, so the clocks of
+	 * the processes do not matter. As many of the requested tokens as are available get granted.
 	 *
-	 * @param permName The name of the permission you want to check
-	 * @param guildId  The ID of the guild you want to get the data of
-	 * @return A {@link Flux} emitting all entries for the permission inside the guild upon success
+	 * @param name            The name of the ratelimit
+	 * @param id1             The first part of the key
+	 * @param id2             The second part of the key or {@code 0}
+	 * @param requested       The number of tokens to lease, at most the capacity of the ratelimit
+	 * @param emissionMicros  The time in microseconds it takes to refill one token
+	 * @param toleranceMicros The time in microseconds the TAT may be ahead of now, {@code (capacity - 1) * emissionMicros}
+	 * @return A {@link Mono} emitting the number of granted tokens
 	 */
 	@NonNull
-	public static Flux<PermissionManager.CommandPermission> getPermissions(@NonNull String permName, @NonNull Snowflake guildId){
-		return getConnection().flatMapMany(con -> Flux.from(con.createStatement("SELECT * FROM " + Tables.PERMISSIONS.getName() + " WHERE permissionName=$1 AND guildId=$2")
-				.bind("$1", permName)
-				.bind("$2", guildId.asLong())
+	public static Mono<Long> leaseRatelimitTokens(@NonNull String name, long id1, long id2, long requested, long emissionMicros, long toleranceMicros){
+		// all column references in SET are the values before the update
+		String granted = "GREATEST(0, LEAST($4, ($6 + $5 - GREATEST(" + Tables.RATELIMITS.getName() + ".tat - (SELECT now FROM t), 0)) / $5))";
+		return useConnection(con -> Mono.from(con.createStatement("WITH t AS (SELECT (EXTRACT(EPOCH FROM clock_timestamp()) * 1000000)::BIGINT AS now) " +
+						"INSERT INTO " + Tables.RATELIMITS.getName() + " (name, id1, id2, tat, granted) SELECT $1, $2, $3, t.now + $4 * $5, $4 FROM t " +
+						"ON CONFLICT (name, id1, id2) DO UPDATE SET " +
+						"granted = " + granted + ", " +
+						"tat = GREATEST(" + Tables.RATELIMITS.getName() + ".tat, (SELECT now FROM t)) + $5 * " + granted + " " +
+						"RETURNING granted")
+				.bind("$1", name)
+				.bind("$2", id1)
+				.bind("$3", id2)
+				.bind("$4", requested)
+				.bind("$5", emissionMicros)
+				.bind("$6", toleranceMicros)
+				.execute())
+				.flatMap(result -> Mono.from(result.map((row, rowMetadata) -> row.get("granted", Long.class))))
+		);
+	}
+	
+	/**
+	 * Deletes all ratelimit entries whose buckets are full again, those are equal to entries that do not exist.
+	 *
+	 * @return A {@link Mono} emitting the number of deleted entries
+	 */
+	@NonNull
+	public static Mono<Integer> deleteExpiredRatelimits(){
+		return useConnection(con -> Mono.from(con.createStatement("DELETE FROM " + Tables.RATELIMITS.getName() + " WHERE tat < (EXTRACT(EPOCH FROM clock_timestamp()) * 1000000)::BIGINT")
+				.execute())
+				.flatMapMany(Result::getRowsUpdated).next()
+		);
+	}
+	
+	/**
+	 * Retrieves every prefix that is used by at least one guild or user.
+	 *
+	 * @return A {@link Flux} emitting all distinct prefixes
+	 */
+	@NonNull
+	public static Flux<String> getPrefixes(){
+		return useConnectionMany(con -> Flux.from(con.createStatement("SELECT prefix FROM " + Tables.GUILDS.getName() + " WHERE prefix IS NOT NULL UNION SELECT prefix FROM " + Tables.USERS.getName() + " WHERE prefix IS NOT NULL")
+				.execute())
+				.flatMap(result -> result.map((row, rowMetadata) -> row.get("prefix", String.class)))
+		);
+	}
+	
+	/**
+	 * Retrieves all black- and whitelisted users and roles for all permissions in the provided guild.
+	 *
+	 * @param guildId The ID of the guild you want to get the data of
+	 * @return A {@link Flux} emitting all permission entries of the guild upon success
+	 */
+	@NonNull
+	public static Flux<PermissionManager.CommandPermission> getPermissions(@NonNull Snowflake guildId){
+		return useConnectionMany(con -> Flux.from(con.createStatement("SELECT * FROM " + Tables.PERMISSIONS.getName() + " WHERE guildId=$1")
+				.bind("$1", guildId.asLong())
 				.execute())
-				.flatMap(result -> Mono.from(result.map((row, rowMetadata) -> PermissionManager.CommandPermission.ofRow(row))))
+				.flatMap(result -> result.map((row, rowMetadata) -> PermissionManager.CommandPermission.ofRow(row)))
 		);
 	}
 	
@@ -1,31 +1,65 @@
 package de.l0c4lh057.templatebot.data;
 
+import de.l0c4lh057.templatebot.utils.LongObjectMap;
 import discord4j.common.util.Snowflake;
 import discord4j.core.GatewayDiscordClient;
+import discord4j.core.event.dispatch.DispatchContext;
+import discord4j.core.event.dispatch.DispatchEventMapper;
+import discord4j.core.event.domain.Event;
 import discord4j.core.event.domain.channel.*;
 import discord4j.core.event.domain.guild.*;
 import discord4j.core.event.domain.role.RoleCreateEvent;
 import discord4j.core.event.domain.role.RoleDeleteEvent;
 import discord4j.core.event.domain.role.RoleUpdateEvent;
-import discord4j.core.object.ExtendedPermissionOverwrite;
 import discord4j.core.object.PermissionOverwrite;
-import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.Member;
 import discord4j.core.object.entity.Role;
 import discord4j.core.object.entity.channel.GuildChannel;
 import discord4j.core.object.entity.channel.TextChannel;
 import discord4j.core.util.PermissionUtil;
+import discord4j.discordjson.json.*;
+import discord4j.discordjson.json.gateway.GuildCreate;
+import discord4j.discordjson.json.gateway.GuildMembersChunk;
+import discord4j.discordjson.json.gateway.GuildUpdate;
+import discord4j.discordjson.json.gateway.Ready;
+import discord4j.gateway.ShardInfo;
+import discord4j.rest.util.Permission;
 import discord4j.rest.util.PermissionSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class DiscordCache {
 	
+	private static final Logger logger = LogManager.getLogger("DiscordCache");
+	
 	/**
 	 * Registers all events needed to update the cache
 	 *
@@ -35,37 +69,158 @@ public class DiscordCache {
 	@NonNull
 	public static Mono<Void> registerEvents(@NonNull GatewayDiscordClient client){
 		return Mono.when(
-				client.on(TextChannelUpdateEvent.class).map(TextChannelUpdateEvent::getCurrent).doOnNext(DiscordCache::addChannel),
-				//client.on(VoiceChannelUpdateEvent.class).map(VoiceChannelUpdateEvent::getCurrent).doOnNext(DiscordCache::addChannel),
-				client.on(NewsChannelUpdateEvent.class).map(NewsChannelUpdateEvent::getCurrent).doOnNext(DiscordCache::addChannel),
-				client.on(StoreChannelUpdateEvent.class).map(StoreChannelUpdateEvent::getCurrent).doOnNext(DiscordCache::addChannel),
-				client.on(TextChannelCreateEvent.class).map(TextChannelCreateEvent::getChannel).doOnNext(DiscordCache::addChannel),
-				//client.on(VoiceChannelCreateEvent.class).map(VoiceChannelCreateEvent::getChannel).doOnNext(DiscordCache::addChannel),
-				client.on(NewsChannelCreateEvent.class).map(NewsChannelCreateEvent::getChannel).doOnNext(DiscordCache::addChannel),
-				client.on(StoreChannelCreateEvent.class).map(StoreChannelCreateEvent::getChannel).doOnNext(DiscordCache::addChannel),
-				client.on(TextChannelDeleteEvent.class).map(TextChannelDeleteEvent::getChannel).doOnNext(DiscordCache::removeChannel),
-				//client.on(VoiceChannelDeleteEvent.class).map(VoiceChannelDeleteEvent::getChannel).doOnNext(DiscordCache::removeChannel),
-				client.on(NewsChannelDeleteEvent.class).map(NewsChannelDeleteEvent::getChannel).doOnNext(DiscordCache::removeChannel),
-				client.on(StoreChannelDeleteEvent.class).map(StoreChannelDeleteEvent::getChannel).doOnNext(DiscordCache::removeChannel),
+				client.on(TextChannelUpdateEvent.class).map(TextChannelUpdateEvent::getCurrent).flatMap(DiscordCache::addChannel),
+				//client.on(VoiceChannelUpdateEvent.class).map(VoiceChannelUpdateEvent::getCurrent).flatMap(DiscordCache::addChannel),
+				client.on(NewsChannelUpdateEvent.class).map(NewsChannelUpdateEvent::getCurrent).flatMap(DiscordCache::addChannel),
+				client.on(StoreChannelUpdateEvent.class).map(StoreChannelUpdateEvent::getCurrent).flatMap(DiscordCache::addChannel),
+				client.on(TextChannelCreateEvent.class).map(TextChannelCreateEvent::getChannel).flatMap(DiscordCache::addChannel),
+				//client.on(VoiceChannelCreateEvent.class).map(VoiceChannelCreateEvent::getChannel).flatMap(DiscordCache::addChannel),
+				client.on(NewsChannelCreateEvent.class).map(NewsChannelCreateEvent::getChannel).flatMap(DiscordCache::addChannel),
+				client.on(StoreChannelCreateEvent.class).map(StoreChannelCreateEvent::getChannel).flatMap(DiscordCache::addChannel),
+				client.on(TextChannelDeleteEvent.class).map(TextChannelDeleteEvent::getChannel).flatMap(DiscordCache::removeChannel),
+				//client.on(VoiceChannelDeleteEvent.class).map(VoiceChannelDeleteEvent::getChannel).flatMap(DiscordCache::removeChannel),
+				client.on(NewsChannelDeleteEvent.class).map(NewsChannelDeleteEvent::getChannel).flatMap(DiscordCache::removeChannel),
+				client.on(StoreChannelDeleteEvent.class).map(StoreChannelDeleteEvent::getChannel).flatMap(DiscordCache::removeChannel),
+				
+				client.on(MemberJoinEvent.class).map(MemberJoinEvent::getMember).flatMap(DiscordCache::addMember),
+				client.on(MemberUpdateEvent.class).flatMap(event -> addMember(event.getGuildId(), event.getMemberId(), event.getCurrentRoles())),
+				client.on(MemberLeaveEvent.class).flatMap(event -> removeMember(event.getGuildId(), event.getUser().getId())),
 				
-				client.on(MemberChunkEvent.class).map(MemberChunkEvent::getMembers).doOnNext(members -> members.forEach(DiscordCache::addMember)),
-				client.on(MemberJoinEvent.class).map(MemberJoinEvent::getMember).doOnNext(DiscordCache::addMember),
-				client.on(MemberUpdateEvent.class).doOnNext(event -> addMember(event.getGuildId(), event.getMemberId(), event.getCurrentRoles())),
-				client.on(MemberLeaveEvent.class).doOnNext(event -> removeMember(event.getGuildId(), event.getUser().getId())),
+				// guild creates, guild updates and member chunks are handled in the dispatch event mapper, see #dispatchEventMapper
+				client.on(GuildDeleteEvent.class).filter(event -> !event.isUnavailable()).map(GuildDeleteEvent::getGuildId).flatMap(DiscordCache::removeGuild),
 				
-				client.on(GuildCreateEvent.class).map(GuildCreateEvent::getGuild).flatMap(DiscordCache::addGuild),
-				client.on(GuildUpdateEvent.class).map(GuildUpdateEvent::getCurrent).flatMap(DiscordCache::addGuild),
-				client.on(GuildDeleteEvent.class).filter(event -> !event.isUnavailable()).map(GuildDeleteEvent::getGuildId).doOnNext(DiscordCache::removeGuild),
+				client.on(RoleCreateEvent.class).map(RoleCreateEvent::getRole).flatMap(DiscordCache::addRole),
+				client.on(RoleUpdateEvent.class).map(RoleUpdateEvent::getCurrent).flatMap(DiscordCache::addRole),
+				client.on(RoleDeleteEvent.class).flatMap(event -> removeRole(event.getGuildId(), event.getRoleId())),
 				
-				client.on(RoleCreateEvent.class).map(RoleCreateEvent::getRole).doOnNext(DiscordCache::addRole),
-				client.on(RoleUpdateEvent.class).map(RoleUpdateEvent::getCurrent).doOnNext(DiscordCache::addRole),
-				client.on(RoleDeleteEvent.class).doOnNext(event -> removeRole(event.getGuildId(), event.getRoleId()))
+				Flux.interval(MEMBER_SWEEP_INTERVAL, MEMBER_SWEEP_INTERVAL).concatMap(i -> sweepMembers()),
+				Flux.interval(SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL).publishOn(Schedulers.boundedElastic()).doOnNext(i -> writeSnapshot())
 				
 				// adding members in MessageCreateEvent is in the events class to make sure it happens before command execution
 		);
 	}
 	
-	private static final Map<Long, MinimalGuild> guilds = new HashMap<>();
+	/*
+	 * The cache is partitioned the same way Discord distributes guilds to shards, every shard has its own partition.
+	 * All changes to a partition are done by its single writer thread, so changes of a guild are applied in the order
+	 * they were received and never contend with changes on other shards. Reads never block and go directly to the
+	 * partition of the guild.
+	 * Until the shard count is known (e.g. while loading the snapshot) there is a single partition. When the partitions
+	 * are replaced, the old writers are retired first: everything queued on them before is still applied, everything
+	 * reaching them afterwards is forwarded to the new partitions once all guilds were moved.
+	 */
+	private static volatile Partition[] partitions = { new Partition(0) };
+	/**
+	 * The running migration to new partitions, guarded by the class lock
+	 */
+	@Nullable private static Mono<Void> migration = null;
+	
+	private static class Partition {
+		private final LongObjectMap<MinimalGuild> guilds = new LongObjectMap<>();
+		private final Scheduler writer;
+		/**
+		 * Only accessed by the writer, set once this partition got replaced and must not be changed anymore
+		 */
+		private boolean retired = false;
+		/**
+		 * Completes after the migration that replaces this partition finished
+		 */
+		@NonNull private volatile Mono<Void> migrated = Mono.empty();
+		private Partition(int shardIndex){
+			this.writer = Schedulers.newSingle("cache-shard-" + shardIndex, true);
+		}
+		/*
+		 * The mutation runs on the writer, but its completion is handed to the parallel scheduler. Otherwise everything
+		 * the caller chains after the write (e.g. a whole command execution) would run on the writer thread and block
+		 * all other writes of this partition.
+		 */
+		@NonNull private Mono<Void> write(@NonNull Runnable mutation){
+			return Mono.fromRunnable(mutation).subscribeOn(writer).publishOn(Schedulers.parallel()).then();
+		}
+		@NonNull private <T> Mono<T> compute(@NonNull Supplier<T> mutation){
+			return Mono.fromSupplier(mutation).subscribeOn(writer).publishOn(Schedulers.parallel());
+		}
+	}
+	
+	@NonNull private static Partition partitionFor(long guildId){
+		Partition[] current = partitions;
+		return current[(int)((guildId >> 22) % current.length)];
+	}
+	
+	/**
+	 * Creates one partition per shard and moves all cached guilds to their new partition. This only does something
+	 * if the shard count changed, so usually only once after the start.
+	 *
+	 * @param shardCount The number of shards
+	 * @return A {@link Mono} completing after all guilds were moved to the new partitions
+	 */
+	@NonNull private static synchronized Mono<Void> ensurePartitions(int shardCount){
+		if(migration != null) return migration;
+		Partition[] old = partitions;
+		if(old.length == shardCount) return Mono.empty();
+		Partition[] updated = new Partition[shardCount];
+		for(int i = 0; i < shardCount; i++) updated[i] = new Partition(i);
+		Mono<Void> done = Flux.fromArray(old)
+				// after this ran on every old writer, all changes queued before are applied and the old guild maps are not changed anymore
+				.flatMap(partition -> partition.write(() -> partition.retired = true))
+				.then(Mono.fromRunnable(() -> {
+					for(Partition partition : old){
+						partition.guilds.forEachValue(guild -> updated[(int)((guild.id >> 22) % shardCount)].guilds.put(guild.id, guild));
+					}
+					synchronized(DiscordCache.class){
+						partitions = updated;
+						migration = null;
+					}
+					// changes that already resolved an old partition can still be forwarded by its writer for a short time
+					Mono.delay(Duration.ofMinutes(1)).subscribe(i -> {
+						for(Partition partition : old) partition.writer.dispose();
+					});
+				}))
+				.then()
+				.cache();
+		for(Partition partition : old) partition.migrated = done;
+		migration = done;
+		return done;
+	}
+	
+	/**
+	 * Runs a change on the writer of the partition of the guild.
+	 *
+	 * @param guildId  The ID of the guild
+	 * @param mutation The change, gets the guilds of the partition
+	 * @return A {@link Mono} emitting the result of the change, empty if it is null
+	 */
+	@NonNull private static <T> Mono<T> compute(long guildId, @NonNull Function<LongObjectMap<MinimalGuild>, T> mutation){
+		return computeOptional(guildId, mutation).flatMap(Mono::justOrEmpty);
+	}
+	@NonNull private static <T> Mono<Optional<T>> computeOptional(long guildId, @NonNull Function<LongObjectMap<MinimalGuild>, T> mutation){
+		return Mono.defer(() -> {
+			Partition partition = partitionFor(guildId);
+			return partition.compute(() -> partition.retired ? null : Optional.ofNullable(mutation.apply(partition.guilds)))
+					// the partition got replaced while the change was queued, it is applied to the new partition instead
+					.switchIfEmpty(Mono.defer(() -> partition.migrated.then(computeOptional(guildId, mutation))));
+		});
+	}
+	@NonNull private static Mono<Void> writePartition(long guildId, @NonNull Consumer<LongObjectMap<MinimalGuild>> mutation){
+		return compute(guildId, guilds -> {
+			mutation.accept(guilds);
+			return null;
+		}).then();
+	}
+	
+	/**
+	 * Runs a change of a cached guild on the writer of its partition.
+	 *
+	 * @param guildId  The ID of the guild
+	 * @param mutation The change, not called if the guild is not cached
+	 * @return A {@link Mono} completing after the change was applied
+	 */
+	@NonNull private static Mono<Void> write(long guildId, @NonNull Consumer<MinimalGuild> mutation){
+		return writePartition(guildId, guilds -> {
+			MinimalGuild guild = guilds.get(guildId);
+			if(guild != null) mutation.accept(guild);
+		});
+	}
 	
 	/**
 	 * Gets the cached {@link MinimalGuild}.
@@ -75,182 +230,961 @@ public class DiscordCache {
 	 */
 	@NonNull
 	public static Optional<MinimalGuild> getGuild(@NonNull Snowflake guildId){
-		return Optional.ofNullable(guilds.get(guildId.asLong()));
+		return Optional.ofNullable(partitionFor(guildId.asLong()).guilds.get(guildId.asLong()));
 	}
 	
-	private static void addChannel(@NonNull GuildChannel channel){
-		getGuild(channel.getGuildId()).ifPresent(guild -> guild.addChannel(new MinimalChannel(channel.getId(), channel.getPermissionOverwrites(), channel instanceof TextChannel && ((TextChannel)channel).isNsfw())));
+	/**
+	 * @return The number of cached guilds
+	 */
+	public static int getGuildCount(){
+		int count = 0;
+		for(Partition partition : partitions) count += partition.guilds.size();
+		return count;
 	}
-	private static void removeChannel(@NonNull GuildChannel channel){
-		getGuild(channel.getGuildId()).ifPresent(guild -> guild.removeChannel(channel.getId()));
+	
+	@NonNull private static Mono<Void> addChannel(@NonNull GuildChannel channel){
+		MinimalChannel minimalChannel = new MinimalChannel(channel.getId().asLong(), channel.getGuildId().asLong(), channel.getPermissionOverwrites(), channel instanceof TextChannel && ((TextChannel)channel).isNsfw());
+		return write(channel.getGuildId().asLong(), guild -> guild.addChannel(minimalChannel));
 	}
-	public static void addMember(@NonNull Member member){
-		addMember(member.getGuildId(), member.getId(), member.getRoleIds());
+	@NonNull private static Mono<Void> removeChannel(@NonNull GuildChannel channel){
+		return write(channel.getGuildId().asLong(), guild -> guild.removeChannel(channel.getId()));
 	}
-	private static void addMember(@NonNull Snowflake guildId, @NonNull Snowflake userId, @NonNull Set<Snowflake> roleIds){
-		getGuild(guildId).ifPresent(guild -> guild.addMember(new MinimalMember(userId, roleIds)));
+	/**
+	 * Adds or updates a member.
+	 *
+	 * @param member The member
+	 * @return A {@link Mono} completing after the member was added
+	 */
+	@NonNull
+	public static Mono<Void> addMember(@NonNull Member member){
+		return addMember(member.getGuildId(), member.getId(), member.getRoleIds());
 	}
-	private static void removeMember(@NonNull Snowflake guildId, @NonNull Snowflake userId){
-		getGuild(guildId).ifPresent(guild -> guild.removeMember(userId));
+	@NonNull private static Mono<Void> addMember(@NonNull Snowflake guildId, @NonNull Snowflake userId, @NonNull Set<Snowflake> roleIds){
+		MinimalMember member = new MinimalMember(userId.asLong(), toSortedArray(roleIds));
+		return write(guildId.asLong(), guild -> guild.addMember(member));
 	}
-	private static void addRole(@NonNull Role role){
-		getGuild(role.getGuildId()).ifPresent(guild -> guild.addRole(new MinimalRole(role.getRawPosition(), role.getGuildId(), role.getId(), role.getPermissions())));
+	/**
+	 * Adds a member that got fetched from the API.
+	 *
+	 * @param guildId The ID of the guild the member is in
+	 * @param member  The data of the member
+	 * @return A {@link Mono} emitting the cached {@link MinimalMember}, empty if the guild is not cached
+	 */
+	@NonNull
+	static Mono<MinimalMember> addMember(long guildId, @NonNull MemberData member){
+		MinimalMember minimalMember = toMinimalMember(member);
+		return compute(guildId, guilds -> {
+			MinimalGuild guild = guilds.get(guildId);
+			if(guild == null) return null;
+			guild.addMember(minimalMember);
+			return guild.members.get(minimalMember.id);
+		});
 	}
-	private static void removeRole(@NonNull Snowflake guildId, @NonNull Snowflake roleId){
-		getGuild(guildId).ifPresent(guild -> guild.removeRole(roleId));
+	@NonNull private static Mono<Void> removeMember(@NonNull Snowflake guildId, @NonNull Snowflake userId){
+		return write(guildId.asLong(), guild -> guild.removeMember(userId));
 	}
-	private static void removeGuild(@NonNull Snowflake guildId){
-		guilds.remove(guildId.asLong());
+	@NonNull private static Mono<Void> addRole(@NonNull Role role){
+		MinimalRole minimalRole = toMinimalRole(role);
+		return write(role.getGuildId().asLong(), guild -> guild.addRole(minimalRole));
 	}
-	@NonNull private static Mono<Void> addGuild(@NonNull Guild guild){
-		MinimalGuild minimalGuild = new MinimalGuild(
-				guild.getId(),
-				guild.getOwnerId(),
-				new HashMap<>(),
-				new HashMap<>(),
-				new HashMap<>()
-		);
-		return Mono.when(
-				guild.getSelfMember().doOnNext(DiscordCache::addMember),
-				Mono.fromRunnable(() -> guilds.put(guild.getId().asLong(), minimalGuild)),
-				guild.getRoles().doOnNext(role -> minimalGuild.addRole(new MinimalRole(role.getRawPosition(), role.getGuildId(), role.getId(), role.getPermissions())))
-		);
+	@NonNull private static Mono<Void> removeRole(@NonNull Snowflake guildId, @NonNull Snowflake roleId){
+		return write(guildId.asLong(), guild -> guild.removeRole(roleId));
+	}
+	@NonNull private static Mono<Void> removeGuild(@NonNull Snowflake guildId){
+		return writePartition(guildId.asLong(), guilds -> {
+			MinimalGuild guild = guilds.remove(guildId.asLong());
+			if(guild != null) cachedMembers.addAndGet(-guild.members.size());
+		});
+	}
+	
+	/*
+	 * Snapshot of the cache. It is written periodically and on shutdown and loaded on startup, so permission checks work
+	 * before the guilds got received again. Guilds from the snapshot get replaced by the data of their GuildCreate,
+	 * guilds that were not received when the startup finished are removed.
+	 */
+	// TODO: adjust snapshot settings
+	private static final Path SNAPSHOT_FILE = Paths.get("discordcache.snapshot");
+	private static final Duration SNAPSHOT_INTERVAL = Duration.ofMinutes(15);
+	private static final int SNAPSHOT_MAGIC = 0x44434348;
+	private static final int SNAPSHOT_VERSION = 1;
+	
+	/**
+	 * Writes the current content of the cache to the snapshot file. The file is replaced atomically, so a crash while
+	 * writing keeps the previous snapshot.
+	 */
+	public static synchronized void writeSnapshot(){
+		long startNanos = System.nanoTime();
+		Path tempFile = SNAPSHOT_FILE.resolveSibling(SNAPSHOT_FILE.getFileName() + ".tmp");
+		List<MinimalGuild> snapshotGuilds = new ArrayList<>();
+		for(Partition partition : partitions) partition.guilds.forEachValue(snapshotGuilds::add);
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))){
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(snapshotGuilds.size());
+			for(MinimalGuild guild : snapshotGuilds) writeGuild(out, guild);
+		}catch(IOException ex){
+			logger.error("Could not write the cache snapshot", ex);
+			return;
+		}
+		try{
+			Files.move(tempFile, SNAPSHOT_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}catch(IOException ex){
+			logger.error("Could not replace the cache snapshot", ex);
+			return;
+		}
+		logger.info("Wrote cache snapshot with {} guilds in {}ms", snapshotGuilds.size(), Duration.ofNanos(System.nanoTime() - startNanos).toMillis());
+	}
+	private static void writeGuild(@NonNull DataOutputStream out, @NonNull MinimalGuild guild) throws IOException{
+		out.writeLong(guild.id);
+		out.writeLong(guild.ownerId);
+		MinimalRole[] roles = guild.sortedRoles;
+		out.writeInt(roles.length);
+		for(MinimalRole role : roles){
+			out.writeLong(role.id);
+			out.writeInt(role.position);
+			out.writeLong(role.permissions);
+		}
+		List<MinimalChannel> channels = guild.channels.values();
+		out.writeInt(channels.size());
+		for(MinimalChannel channel : channels){
+			out.writeLong(channel.id);
+			out.writeBoolean(channel.nsfw);
+			Set<PermissionOverwrite> overwrites = channel.getPermissionOverwrites();
+			out.writeInt(overwrites.size());
+			for(PermissionOverwrite overwrite : overwrites){
+				out.writeLong(overwrite.getTargetId().asLong());
+				out.writeBoolean(overwrite.getType() == PermissionOverwrite.Type.MEMBER);
+				out.writeLong(overwrite.getAllowed().getRawValue());
+				out.writeLong(overwrite.getDenied().getRawValue());
+			}
+		}
+		List<MinimalMember> members = guild.members.values();
+		out.writeInt(members.size());
+		for(MinimalMember member : members){
+			out.writeLong(member.id);
+			out.writeInt(member.roleIds.length);
+			for(long roleId : member.roleIds) out.writeLong(roleId);
+		}
+	}
+	
+	/**
+	 * Loads the snapshot file into the cache. Guilds that are already cached are not overwritten. This should be
+	 * called before logging in.
+	 */
+	public static void loadSnapshot(){
+		if(!Files.exists(SNAPSHOT_FILE)) return;
+		long startNanos = System.nanoTime();
+		int loaded = 0;
+		try(FileChannel channel = FileChannel.open(SNAPSHOT_FILE, StandardOpenOption.READ)){
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION){
+				logger.warn("Ignoring cache snapshot with unknown format");
+				return;
+			}
+			int guildCount = buffer.getInt();
+			for(int i = 0; i < guildCount; i++){
+				MinimalGuild guild = readGuild(buffer);
+				// the snapshot is loaded before logging in, so there is no writer yet
+				LongObjectMap<MinimalGuild> guilds = partitionFor(guild.id).guilds;
+				if(guilds.containsKey(guild.id)) continue;
+				guilds.put(guild.id, guild);
+				cachedMembers.addAndGet(guild.members.size());
+				loaded++;
+			}
+		}catch(IOException | RuntimeException ex){
+			logger.warn("Could not load the cache snapshot, {} guilds were loaded", loaded, ex);
+			return;
+		}
+		logger.info("Loaded {} guilds from the cache snapshot in {}ms", loaded, Duration.ofNanos(System.nanoTime() - startNanos).toMillis());
+	}
+	@NonNull private static MinimalGuild readGuild(@NonNull ByteBuffer buffer){
+		MinimalGuild guild = new MinimalGuild(buffer.getLong(), buffer.getLong());
+		guild.confirmed = false;
+		int roleCount = buffer.getInt();
+		List<MinimalRole> roles = new ArrayList<>(roleCount);
+		for(int i = 0; i < roleCount; i++){
+			long roleId = buffer.getLong();
+			int position = buffer.getInt();
+			roles.add(new MinimalRole(position, guild.id, roleId, buffer.getLong()));
+		}
+		guild.setRoles(roles);
+		int channelCount = buffer.getInt();
+		List<MinimalChannel> channels = new ArrayList<>(channelCount);
+		for(int i = 0; i < channelCount; i++){
+			long channelId = buffer.getLong();
+			boolean nsfw = buffer.get() != 0;
+			int overwriteCount = buffer.getInt();
+			Set<PermissionOverwrite> overwrites = new HashSet<>();
+			for(int j = 0; j < overwriteCount; j++){
+				long targetId = buffer.getLong();
+				boolean isMember = buffer.get() != 0;
+				long allowed = buffer.getLong();
+				overwrites.add(toPermissionOverwrite(targetId, isMember, allowed, buffer.getLong()));
+			}
+			channels.add(new MinimalChannel(channelId, guild.id, overwrites, nsfw));
+		}
+		guild.setChannels(channels);
+		int memberCount = buffer.getInt();
+		guild.members.ensureCapacity(memberCount);
+		for(int i = 0; i < memberCount; i++){
+			long memberId = buffer.getLong();
+			long[] roleIds = new long[buffer.getInt()];
+			for(int j = 0; j < roleIds.length; j++) roleIds[j] = buffer.getLong();
+			MinimalMember member = new MinimalMember(memberId, roleIds);
+			member.guild = guild;
+			member.lastAccessTick = currentTick;
+			guild.members.put(memberId, member);
+		}
+		return guild;
+	}
+	private static void removeUnconfirmedGuilds(){
+		int removed = 0;
+		for(Partition partition : partitions){
+			for(MinimalGuild guild : partition.guilds.values()){
+				// guilds that are still unavailable after the startup deadline are kept until they are received
+				if(guild.confirmed || pendingGuilds.contains(guild.getId())) continue;
+				removeGuild(guild.getId()).subscribe();
+				removed++;
+			}
+		}
+		if(removed > 0) logger.info("Removed {} guilds from the cache snapshot that were not received again", removed);
+	}
+	
+	/*
+	 * Member eviction. Members are evicted with a clock sweep: every access stores the current sweep tick in the
+	 * member, so a member that was not accessed since the last sweep has an older tick. Members that were idle for
+	 * longer than MEMBER_MAX_IDLE are always evicted, if there are still more members than MAX_CACHED_MEMBERS
+	 * afterwards all members that were not accessed since the last sweep get evicted until the cache is below
+	 * MEMBER_EVICTION_TARGET. The guild owner and the bot itself are never evicted.
+	 */
+	// TODO: adjust member cache limits
+	private static final int MAX_CACHED_MEMBERS = 500_000;
+	/**
+	 * The number of channels per member for which the effective permissions are memoized
+	 */
+	private static final int MAX_MEMOIZED_CHANNELS = 8;
+	private static final int MEMBER_EVICTION_TARGET = MAX_CACHED_MEMBERS / 10 * 9;
+	private static final Duration MEMBER_SWEEP_INTERVAL = Duration.ofMinutes(5);
+	private static final Duration MEMBER_MAX_IDLE = Duration.ofHours(6);
+	private static final int MEMBER_MAX_IDLE_TICKS = (int)(MEMBER_MAX_IDLE.toMillis() / MEMBER_SWEEP_INTERVAL.toMillis());
+	
+	private static final AtomicInteger cachedMembers = new AtomicInteger();
+	private static final LongAdder evictedMembers = new LongAdder();
+	private static volatile int currentTick = 0;
+	private static volatile long selfId = 0;
+	
+	@NonNull private static Mono<Void> sweepMembers(){
+		int tick = currentTick;
+		LongAdder evicted = new LongAdder();
+		// every partition is swept by its own writer, the partitions are swept one after another
+		return Flux.fromArray(partitions)
+				.concatMap(partition -> partition.write(() -> {
+					// a replaced partition is swept as part of its new partition the next time
+					if(partition.retired) return;
+					partition.guilds.forEachValue(guild ->
+							evicted.add(guild.evictMembers(member -> tick - member.lastAccessTick > MEMBER_MAX_IDLE_TICKS))
+					);
+				}))
+				.thenMany(Flux.fromArray(partitions))
+				.filter(partition -> cachedMembers.get() > MAX_CACHED_MEMBERS)
+				.concatMap(partition -> partition.write(() -> {
+					if(partition.retired) return;
+					partition.guilds.forEachValue(guild -> {
+						if(cachedMembers.get() > MEMBER_EVICTION_TARGET) evicted.add(guild.evictMembers(member -> member.lastAccessTick != tick));
+					});
+				}))
+				.then(Mono.fromRunnable(() -> {
+					currentTick = tick + 1;
+					if(evicted.sum() > 0){
+						evictedMembers.add(evicted.sum());
+						logger.debug("Evicted {} members, {} members are cached", evicted.sum(), cachedMembers.get());
+					}
+				}));
+	}
+	
+	/**
+	 * @return The number of members currently in the cache
+	 */
+	public static int getCachedMemberCount(){
+		return cachedMembers.get();
+	}
+	
+	/**
+	 * @return The number of members that got evicted from the cache because they were not used
+	 */
+	public static long getEvictedMemberCount(){
+		return evictedMembers.sum();
+	}
+	
+	/**
+	 * Creates a {@link DispatchEventMapper} that writes guild creates and updates to the cache before passing them to
+	 * the provided mapper. The cache entries are built from the data in the gateway payload, so no REST requests are
+	 * needed, and as the mapper is called for every dispatch in order, the guild is cached before any event of it is
+	 * emitted.
+	 *
+	 * @param delegate The {@link DispatchEventMapper} creating the events
+	 * @return The wrapping {@link DispatchEventMapper}
+	 */
+	@NonNull
+	public static DispatchEventMapper dispatchEventMapper(@NonNull DispatchEventMapper delegate){
+		long startNanos = System.nanoTime();
+		return new DispatchEventMapper() {
+			@Override
+			public <D, E extends Event> Mono<E> handle(DispatchContext<D> context){
+				D dispatch = context.getDispatch();
+				// changes are only applied after the guilds were moved to the partitions of the current shard count
+				Mono<Void> migrated = partitions.length == context.getShardInfo().getCount() ? Mono.empty() : ensurePartitions(context.getShardInfo().getCount());
+				Consumer<LongObjectMap<MinimalGuild>> mutation;
+				long guildId;
+				if(dispatch instanceof GuildCreate){
+					GuildCreateData data = ((GuildCreate)dispatch).guild();
+					guildId = Snowflake.asLong(data.id());
+					mutation = guilds -> {
+						addGuild(guilds, data);
+						onGuildCached(guildId, startNanos);
+					};
+				}else if(dispatch instanceof GuildMembersChunk){
+					GuildMembersChunk chunk = (GuildMembersChunk)dispatch;
+					guildId = Snowflake.asLong(chunk.guildId());
+					// the members are converted before they are passed to the writer
+					MinimalMember[] members = toMinimalMembers(chunk.members());
+					mutation = guilds -> {
+						MinimalGuild guild = guilds.get(guildId);
+						if(guild != null) guild.addMembers(members);
+					};
+				}else if(dispatch instanceof GuildUpdate){
+					GuildUpdateData data = ((GuildUpdate)dispatch).guild();
+					guildId = Snowflake.asLong(data.id());
+					mutation = guilds -> updateGuild(guilds, data);
+				}else{
+					if(dispatch instanceof Ready) onReady((Ready)dispatch, context.getShardInfo(), startNanos);
+					return migrated.then(delegate.handle(context));
+				}
+				return migrated.then(writePartition(guildId, mutation))
+						.onErrorResume(ex -> {
+							logger.error("Could not update the cache for dispatch {}", dispatch.getClass().getSimpleName(), ex);
+							return Mono.empty();
+						})
+						.then(delegate.handle(context));
+			}
+		};
+	}
+	
+	/*
+	 * Tracking of the guilds that are announced in the ready payloads of the first login but not cached yet. Guilds
+	 * that stay unavailable would block the end of the startup forever, so it also ends STARTUP_DEADLINE after the
+	 * last ready payload.
+	 */
+	// TODO: adjust startup deadline
+	private static final Duration STARTUP_DEADLINE = Duration.ofMinutes(5);
+	private static final Set<Long> pendingGuilds = ConcurrentHashMap.newKeySet();
+	private static final Set<Integer> readyShards = ConcurrentHashMap.newKeySet();
+	private static final AtomicReference<Disposable> startupDeadline = new AtomicReference<>();
+	private static volatile int shardCount = 1;
+	private static volatile Duration startupDuration = null;
+	
+	private static void onReady(@NonNull Ready ready, @NonNull ShardInfo shardInfo, long startNanos){
+		selfId = Snowflake.asLong(ready.user().id());
+		if(startupDuration != null) return;
+		for(UnavailableGuildData guild : ready.guilds()){
+			pendingGuilds.add(Snowflake.asLong(guild.id()));
+		}
+		shardCount = shardInfo.getCount();
+		readyShards.add(shardInfo.getIndex());
+		// no GuildCreate might follow, e.g. if the bot is in no guilds
+		if(pendingGuilds.isEmpty() && readyShards.size() == shardCount){
+			finishStartup(startNanos);
+			return;
+		}
+		Disposable previous = startupDeadline.getAndSet(Mono.delay(STARTUP_DEADLINE).subscribe(i -> {
+			if(startupDuration != null) return;
+			logger.warn("{} guilds were not received within {}s after the last login", pendingGuilds.size(), STARTUP_DEADLINE.getSeconds());
+			finishStartup(startNanos);
+		}));
+		if(previous != null) previous.dispose();
+	}
+	private static void onGuildCached(long guildId, long startNanos){
+		if(startupDuration != null) return;
+		pendingGuilds.remove(guildId);
+		if(pendingGuilds.isEmpty() && readyShards.size() == shardCount) finishStartup(startNanos);
+	}
+	private static void finishStartup(long startNanos){
+		synchronized(pendingGuilds){
+			if(startupDuration != null) return;
+			startupDuration = Duration.ofNanos(System.nanoTime() - startNanos);
+		}
+		Disposable deadline = startupDeadline.getAndSet(null);
+		if(deadline != null) deadline.dispose();
+		if(pendingGuilds.isEmpty()){
+			logger.info("All {} guilds cached {}ms after login", getGuildCount(), startupDuration.toMillis());
+		}else{
+			logger.info("{} guilds cached {}ms after login, {} guilds are still unavailable", getGuildCount(), startupDuration.toMillis(), pendingGuilds.size());
+		}
+		removeUnconfirmedGuilds();
+		pendingGuilds.clear();
+	}
+	
+	/**
+	 * @return The time from login until the guilds of all shards were cached or the startup deadline passed, or an
+	 * empty {@link Optional} if that did not happen yet
+	 */
+	@NonNull
+	public static Optional<Duration> getStartupDuration(){
+		return Optional.ofNullable(startupDuration);
+	}
+	
+	/**
+	 * Has to be called by the writer of the partition of the guild
+	 */
+	private static void addGuild(@NonNull LongObjectMap<MinimalGuild> guilds, @NonNull GuildCreateData data){
+		long guildId = Snowflake.asLong(data.id());
+		MinimalGuild guild = guilds.get(guildId);
+		if(guild == null){
+			guild = new MinimalGuild(guildId, Snowflake.asLong(data.ownerId()));
+			fillGuild(guild, data);
+			guilds.put(guildId, guild);
+			return;
+		}
+		// the guild is still cached from before a reconnect or from the snapshot, cached members are kept
+		guild.ownerId = Snowflake.asLong(data.ownerId());
+		guild.confirmed = true;
+		fillGuild(guild, data);
+	}
+	private static void fillGuild(@NonNull MinimalGuild guild, @NonNull GuildCreateData data){
+		guild.setRoles(toMinimalRoles(guild.id, data.roles()));
+		List<MinimalChannel> channels = new ArrayList<>(data.channels().size());
+		for(ChannelData channel : data.channels()){
+			channels.add(toMinimalChannel(guild.id, channel));
+		}
+		guild.setChannels(channels);
+		guild.addMembers(toMinimalMembers(data.members()));
+	}
+	/**
+	 * Has to be called by the writer of the partition of the guild
+	 */
+	private static void updateGuild(@NonNull LongObjectMap<MinimalGuild> guilds, @NonNull GuildUpdateData data){
+		MinimalGuild guild = guilds.get(Snowflake.asLong(data.id()));
+		if(guild == null) return;
+		// members and channels are not part of a guild update
+		guild.ownerId = Snowflake.asLong(data.ownerId());
+		guild.setRoles(toMinimalRoles(guild.id, data.roles()));
+	}
+	@NonNull private static MinimalRole toMinimalRole(@NonNull Role role){
+		return new MinimalRole(role.getRawPosition(), role.getGuildId().asLong(), role.getId().asLong(), role.getPermissions().getRawValue());
+	}
+	@NonNull private static List<MinimalRole> toMinimalRoles(long guildId, @NonNull List<RoleData> roles){
+		List<MinimalRole> minimalRoles = new ArrayList<>(roles.size());
+		for(RoleData role : roles){
+			minimalRoles.add(new MinimalRole(role.position(), guildId, Snowflake.asLong(role.id()), role.permissions()));
+		}
+		return minimalRoles;
+	}
+	@NonNull private static MinimalChannel toMinimalChannel(long guildId, @NonNull ChannelData channel){
+		Set<PermissionOverwrite> overwrites = new HashSet<>();
+		for(OverwriteData overwrite : channel.permissionOverwrites().toOptional().orElse(Collections.emptyList())){
+			overwrites.add(toPermissionOverwrite(Snowflake.asLong(overwrite.id()), PermissionOverwrite.Type.of(overwrite.type()) == PermissionOverwrite.Type.MEMBER, overwrite.allow(), overwrite.deny()));
+		}
+		return new MinimalChannel(Snowflake.asLong(channel.id()), guildId, overwrites, channel.nsfw().toOptional().orElse(false));
+	}
+	@NonNull private static PermissionOverwrite toPermissionOverwrite(long targetId, boolean isMember, long allowed, long denied){
+		return isMember
+				? PermissionOverwrite.forMember(Snowflake.of(targetId), PermissionSet.of(allowed), PermissionSet.of(denied))
+				: PermissionOverwrite.forRole(Snowflake.of(targetId), PermissionSet.of(allowed), PermissionSet.of(denied));
+	}
+	@NonNull private static MinimalMember[] toMinimalMembers(@NonNull List<MemberData> members){
+		MinimalMember[] minimalMembers = new MinimalMember[members.size()];
+		for(int i = 0; i < minimalMembers.length; i++) minimalMembers[i] = toMinimalMember(members.get(i));
+		return minimalMembers;
+	}
+	@NonNull private static MinimalMember toMinimalMember(@NonNull MemberData member){
+		List<String> roles = member.roles();
+		long[] roleIds = new long[roles.size()];
+		for(int i = 0; i < roleIds.length; i++) roleIds[i] = Snowflake.asLong(roles.get(i));
+		Arrays.sort(roleIds);
+		return new MinimalMember(Snowflake.asLong(member.user().id()), roleIds);
+	}
+	@NonNull private static long[] toSortedArray(@NonNull Set<Snowflake> ids){
+		long[] array = new long[ids.size()];
+		int i = 0;
+		for(Snowflake id : ids) array[i++] = id.asLong();
+		Arrays.sort(array);
+		return array;
 	}
 	
 	public static class MinimalRole {
 		private final int position;
-		private final Snowflake guildId;
-		private final Snowflake id;
-		private final PermissionSet permissions;
-		private MinimalRole(int position, @NonNull Snowflake guildId, @NonNull Snowflake id, @NonNull PermissionSet permissions){
+		private final long guildId;
+		private final long id;
+		private final long permissions;
+		private MinimalRole(int position, long guildId, long id, long permissions){
 			this.position = position;
 			this.guildId = guildId;
 			this.id = id;
 			this.permissions = permissions;
 		}
 		public int getRawPosition(){ return position; }
-		@NonNull public Snowflake getGuildId(){ return guildId; }
-		@NonNull public Snowflake getId(){ return id; }
-		@NonNull public PermissionSet getPermissions(){ return permissions; }
+		@NonNull public Snowflake getGuildId(){ return Snowflake.of(guildId); }
+		@NonNull public Snowflake getId(){ return Snowflake.of(id); }
+		@NonNull public PermissionSet getPermissions(){ return PermissionSet.of(permissions); }
+		public boolean isEveryone(){ return id == guildId; }
 	}
 	
+	private static final Comparator<MinimalRole> ROLE_ORDER = Comparator.<MinimalRole>comparingInt(role -> role.position).thenComparingLong(role -> role.id);
+	
 	public static class MinimalGuild {
-		private final Snowflake id;
-		private final Snowflake ownerId;
-		private final Map<Long, MinimalRole> roles;
-		private final Map<Long, MinimalChannel> channels;
-		private final Map<Long, MinimalMember> members;
-		private MinimalGuild(@NonNull Snowflake id, @NonNull Snowflake ownerId, @Nullable Map<Long, MinimalRole> roles,
-												 @Nullable Map<Long, MinimalChannel> channels, @Nullable Map<Long, MinimalMember> members){
+		private final long id;
+		private volatile long ownerId;
+		/**
+		 * {@code false} if this guild was loaded from the snapshot and no GuildCreate was received for it yet
+		 */
+		private volatile boolean confirmed = true;
+		private final LongObjectMap<MinimalRole> roles = new LongObjectMap<>();
+		private final LongObjectMap<MinimalChannel> channels = new LongObjectMap<>();
+		private final LongObjectMap<MinimalMember> members = new LongObjectMap<>();
+		/**
+		 * All roles of this guild sorted by their position. The array is never modified, every role change publishes a
+		 * new one, so its identity can be used to detect role changes.
+		 */
+		private volatile MinimalRole[] sortedRoles = new MinimalRole[0];
+		/**
+		 * Incremented whenever roles or channels change, used to invalidate memoized permissions of members
+		 */
+		private final AtomicLong permissionsVersion = new AtomicLong();
+		private MinimalGuild(long id, long ownerId){
 			this.id = id;
 			this.ownerId = ownerId;
-			this.roles = roles == null ? new HashMap<>() : roles;
-			this.channels = channels == null ? new HashMap<>() : channels;
-			this.members = members == null ? new HashMap<>() : members;
-			this.members.values().forEach(member -> member.guild = this);
 		}
-		@NonNull public Snowflake getId(){ return id; }
-		@NonNull public Snowflake getOwnerId(){ return ownerId; }
+		@NonNull public Snowflake getId(){ return Snowflake.of(id); }
+		@NonNull public Snowflake getOwnerId(){ return Snowflake.of(ownerId); }
 		/**
-		 *
-		 * @return
+		 * @return All roles of this guild sorted by their position
 		 */
 		@NonNull public Stream<MinimalRole> getRoles(){
-			return roles.values().stream()
-					.sorted(Comparator.comparing(MinimalRole::getRawPosition).thenComparing(MinimalRole::getId));
+			return Arrays.stream(sortedRoles);
 		}
 		@NonNull public Optional<MinimalChannel> getChannel(@NonNull Snowflake channelId){
 			return Optional.ofNullable(channels.get(channelId.asLong()));
 		}
+		/**
+		 * Gets the raw permissions of the bot in a channel. They are cached per channel until the roles, channels or the
+		 * bot member of this guild change.
+		 *
+		 * @param channelId The ID of the channel
+		 * @return The raw permissions of the bot, or an empty {@link OptionalLong} if the bot member is not cached
+		 */
+		@NonNull public OptionalLong getSelfPermissions(@NonNull Snowflake channelId){
+			MinimalMember self = members.get(selfId);
+			if(self == null) return OptionalLong.empty();
+			MinimalChannel channel = channels.get(channelId.asLong());
+			if(channel == null) return OptionalLong.of(self.getEffectivePermissions(channelId).getRawValue());
+			long version = permissionsVersion.get();
+			SelfPermissions cached = channel.selfPermissions;
+			if(cached != null && cached.version == version) return OptionalLong.of(cached.permissions);
+			long permissions = self.getEffectivePermissions(channelId).getRawValue();
+			channel.selfPermissions = new SelfPermissions(version, permissions);
+			return OptionalLong.of(permissions);
+		}
 		@NonNull public Optional<MinimalMember> getMember(@NonNull Snowflake memberId){
-			return Optional.ofNullable(members.get(memberId.asLong()));
+			MinimalMember member = members.get(memberId.asLong());
+			if(member != null) member.markAccessed();
+			return Optional.ofNullable(member);
 		}
 		@NonNull public Optional<MinimalRole> getRole(@NonNull Snowflake roleId){
 			return Optional.ofNullable(roles.get(roleId.asLong()));
 		}
+		private boolean isOwner(long userId){
+			return ownerId == userId;
+		}
+		/*
+		 * All changes are done by the writer of the partition of this guild.
+		 */
 		private void addMember(@NonNull MinimalMember member){
+			// keep the existing instance if nothing changed so its memoized permissions stay valid
+			MinimalMember existing = members.get(member.id);
+			if(existing != null && Arrays.equals(existing.roleIds, member.roleIds)){
+				existing.markAccessed();
+				return;
+			}
 			member.guild = this;
-			members.put(member.getId().asLong(), member);
+			member.lastAccessTick = currentTick;
+			if(members.put(member.id, member) == null) cachedMembers.incrementAndGet();
+			// the cached permissions of the bot in the channels depend on its roles
+			if(member.id == selfId) permissionsVersion.incrementAndGet();
+		}
+		/**
+		 * Adds many members at once, e.g. from a member chunk. The member map is resized at most once.
+		 */
+		private void addMembers(@NonNull MinimalMember[] newMembers){
+			members.ensureCapacity(members.size() + newMembers.length);
+			for(MinimalMember member : newMembers) addMember(member);
 		}
 		private void addRole(@NonNull MinimalRole role){
-			roles.put(role.getId().asLong(), role);
+			MinimalRole previous = roles.put(role.id, role);
+			MinimalRole[] current = previous == null ? sortedRoles : withoutRole(sortedRoles, previous);
+			int index = -Arrays.binarySearch(current, role, ROLE_ORDER) - 1;
+			MinimalRole[] updated = new MinimalRole[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			updated[index] = role;
+			System.arraycopy(current, index, updated, index + 1, current.length - index);
+			sortedRoles = updated;
+			permissionsVersion.incrementAndGet();
 		}
 		private void addChannel(@NonNull MinimalChannel channel){
-			channels.put(channel.getId().asLong(), channel);
+			channels.put(channel.id, channel);
+			permissionsVersion.incrementAndGet();
+		}
+		/**
+		 * Replaces all roles of this guild
+		 */
+		private void setRoles(@NonNull List<MinimalRole> newRoles){
+			MinimalRole[] sorted = newRoles.toArray(new MinimalRole[0]);
+			Arrays.sort(sorted, ROLE_ORDER);
+			LongObjectMap<MinimalRole> newRolesById = new LongObjectMap<>(sorted.length);
+			for(MinimalRole role : sorted) newRolesById.put(role.id, role);
+			for(MinimalRole role : sorted) roles.put(role.id, role);
+			for(MinimalRole role : sortedRoles){
+				if(!newRolesById.containsKey(role.id)) roles.remove(role.id);
+			}
+			sortedRoles = sorted;
+			permissionsVersion.incrementAndGet();
+		}
+		/**
+		 * Replaces all channels of this guild
+		 */
+		private void setChannels(@NonNull List<MinimalChannel> newChannels){
+			LongObjectMap<MinimalChannel> newChannelsById = new LongObjectMap<>(newChannels.size());
+			for(MinimalChannel channel : newChannels){
+				newChannelsById.put(channel.id, channel);
+				channels.put(channel.id, channel);
+			}
+			for(MinimalChannel channel : channels.values()){
+				if(!newChannelsById.containsKey(channel.id)) channels.remove(channel.id);
+			}
+			permissionsVersion.incrementAndGet();
 		}
 		private void removeMember(@NonNull Snowflake userId){
-			members.remove(userId.asLong());
+			if(members.remove(userId.asLong()) != null) cachedMembers.decrementAndGet();
+			if(userId.asLong() == selfId) permissionsVersion.incrementAndGet();
+		}
+		/**
+		 * Removes all members matching the filter except for the owner and the bot itself
+		 *
+		 * @return The number of removed members
+		 */
+		private int evictMembers(@NonNull Predicate<MinimalMember> filter){
+			int evicted = 0;
+			for(MinimalMember member : members.values()){
+				if(member.id == ownerId || member.id == selfId || !filter.test(member)) continue;
+				members.remove(member.id);
+				cachedMembers.decrementAndGet();
+				evicted++;
+			}
+			return evicted;
 		}
 		private void removeRole(@NonNull Snowflake roleId){
-			roles.remove(roleId.asLong());
+			MinimalRole previous = roles.remove(roleId.asLong());
+			if(previous == null) return;
+			sortedRoles = withoutRole(sortedRoles, previous);
+			permissionsVersion.incrementAndGet();
+		}
+		@NonNull private static MinimalRole[] withoutRole(@NonNull MinimalRole[] sortedRoles, @NonNull MinimalRole role){
+			int index = Arrays.binarySearch(sortedRoles, role, ROLE_ORDER);
+			if(index < 0) return sortedRoles;
+			MinimalRole[] updated = new MinimalRole[sortedRoles.length - 1];
+			System.arraycopy(sortedRoles, 0, updated, 0, index);
+			System.arraycopy(sortedRoles, index + 1, updated, index, updated.length - index);
+			return updated;
 		}
 		private void removeChannel(@NonNull Snowflake channelId){
 			channels.remove(channelId.asLong());
+			permissionsVersion.incrementAndGet();
 		}
 	}
 	
+	private static final long ALL_PERMISSIONS = PermissionSet.all().getRawValue();
+	private static final long ADMINISTRATOR = Permission.ADMINISTRATOR.getValue();
+	
 	public static class MinimalChannel {
-		private final Snowflake id;
-		private final Set<ExtendedPermissionOverwrite> permissionOverwrites;
+		private final long id;
+		private final long guildId;
 		private final boolean nsfw;
-		private MinimalChannel(@NonNull Snowflake id, @NonNull Set<ExtendedPermissionOverwrite> permissionOverwrites, boolean nsfw){
+		/*
+		 * The permission overwrites as raw bitmasks. Role and member overwrites are sorted by their target ID, the
+		 * role overwrites are applied in the role order of the member.
+		 */
+		private final boolean hasEveryoneOverwrite;
+		private final long everyoneAllowed;
+		private final long everyoneDenied;
+		private final long[] roleIds;
+		private final long[] roleAllowed;
+		private final long[] roleDenied;
+		private final long[] memberIds;
+		private final long[] memberAllowed;
+		private final long[] memberDenied;
+		/**
+		 * The permissions of the bot in this channel, see {@link MinimalGuild#getSelfPermissions(Snowflake)}
+		 */
+		private volatile SelfPermissions selfPermissions = null;
+		private MinimalChannel(long id, long guildId, @NonNull Collection<? extends PermissionOverwrite> permissionOverwrites, boolean nsfw){
 			this.id = id;
-			this.permissionOverwrites = permissionOverwrites;
+			this.guildId = guildId;
 			this.nsfw = nsfw;
+			PermissionOverwrite everyoneOverwrite = null;
+			List<PermissionOverwrite> roleOverwrites = new ArrayList<>();
+			List<PermissionOverwrite> memberOverwrites = new ArrayList<>();
+			for(PermissionOverwrite overwrite : permissionOverwrites){
+				if(overwrite.getTargetId().asLong() == guildId) everyoneOverwrite = overwrite;
+				else if(overwrite.getType() == PermissionOverwrite.Type.MEMBER) memberOverwrites.add(overwrite);
+				else roleOverwrites.add(overwrite);
+			}
+			this.hasEveryoneOverwrite = everyoneOverwrite != null;
+			this.everyoneAllowed = everyoneOverwrite == null ? 0 : everyoneOverwrite.getAllowed().getRawValue();
+			this.everyoneDenied = everyoneOverwrite == null ? 0 : everyoneOverwrite.getDenied().getRawValue();
+			roleOverwrites.sort(Comparator.comparingLong(overwrite -> overwrite.getTargetId().asLong()));
+			this.roleIds = new long[roleOverwrites.size()];
+			this.roleAllowed = new long[roleOverwrites.size()];
+			this.roleDenied = new long[roleOverwrites.size()];
+			for(int i = 0; i < roleIds.length; i++){
+				roleIds[i] = roleOverwrites.get(i).getTargetId().asLong();
+				roleAllowed[i] = roleOverwrites.get(i).getAllowed().getRawValue();
+				roleDenied[i] = roleOverwrites.get(i).getDenied().getRawValue();
+			}
+			memberOverwrites.sort(Comparator.comparingLong(overwrite -> overwrite.getTargetId().asLong()));
+			this.memberIds = new long[memberOverwrites.size()];
+			this.memberAllowed = new long[memberOverwrites.size()];
+			this.memberDenied = new long[memberOverwrites.size()];
+			for(int i = 0; i < memberIds.length; i++){
+				memberIds[i] = memberOverwrites.get(i).getTargetId().asLong();
+				memberAllowed[i] = memberOverwrites.get(i).getAllowed().getRawValue();
+				memberDenied[i] = memberOverwrites.get(i).getDenied().getRawValue();
+			}
+		}
+		@NonNull public Snowflake getId(){ return Snowflake.of(id); }
+		/**
+		 * @return The permission overwrites of this channel, the everyone overwrite is returned as role overwrite
+		 */
+		@NonNull public Set<PermissionOverwrite> getPermissionOverwrites(){
+			Set<PermissionOverwrite> overwrites = new HashSet<>();
+			if(hasEveryoneOverwrite) overwrites.add(toPermissionOverwrite(guildId, false, everyoneAllowed, everyoneDenied));
+			for(int i = 0; i < roleIds.length; i++) overwrites.add(toPermissionOverwrite(roleIds[i], false, roleAllowed[i], roleDenied[i]));
+			for(int i = 0; i < memberIds.length; i++) overwrites.add(toPermissionOverwrite(memberIds[i], true, memberAllowed[i], memberDenied[i]));
+			return overwrites;
 		}
-		@NonNull public Snowflake getId(){ return id; }
-		@NonNull public Set<ExtendedPermissionOverwrite> getPermissionOverwrites(){ return permissionOverwrites; }
 		public boolean isNsfw() { return nsfw; }
+		/**
+		 * Applies the overwrites of this channel the same way as
+		 * {@link PermissionUtil#computePermissions(PermissionSet, PermissionOverwrite, List, PermissionOverwrite)}:
+		 * the everyone overwrite first, then the role overwrites in role order and the member overwrite last.
+		 *
+		 * @param basePermissions The raw base permissions of the member
+		 * @param roles           The roles of the member
+		 * @param memberId        The ID of the member
+		 * @return The raw permissions of the member in this channel
+		 */
+		private long applyOverwrites(long basePermissions, @NonNull RoleMask roles, long memberId){
+			if((basePermissions & ADMINISTRATOR) != 0) return ALL_PERMISSIONS;
+			long permissions = basePermissions;
+			if(hasEveryoneOverwrite) permissions = (permissions & ~everyoneDenied & ALL_PERMISSIONS) | everyoneAllowed;
+			if(roleIds.length > 0){
+				for(int i = roles.nextRole(0); i >= 0; i = roles.nextRole(i + 1)){
+					int index = Arrays.binarySearch(roleIds, roles.sortedRoles[i].id);
+					if(index >= 0) permissions = (permissions & ~roleDenied[index] & ALL_PERMISSIONS) | roleAllowed[index];
+				}
+			}
+			if(memberIds.length > 0){
+				int index = Arrays.binarySearch(memberIds, memberId);
+				if(index >= 0) permissions = (permissions & ~memberDenied[index] & ALL_PERMISSIONS) | memberAllowed[index];
+			}
+			return permissions;
+		}
 	}
 	
 	public static class MinimalMember {
 		private MinimalGuild guild;
-		private final Snowflake id;
-		private final Set<Snowflake> roleIds;
-		private MinimalMember(@NonNull Snowflake id, @NonNull Set<Snowflake> roleIds){
+		private final long id;
+		/**
+		 * The IDs of the roles of this member in ascending order, not including the everyone role
+		 */
+		private final long[] roleIds;
+		/*
+		 * Memoized permissions. A change of the member roles creates a new MinimalMember, changes of roles or channels
+		 * are detected with MinimalGuild#permissionsVersion.
+		 */
+		private volatile MemoizedPermissions basePermissions = null;
+		private volatile ChannelPermissions effectivePermissions = null;
+		private volatile RoleMask roleMask = null;
+		/**
+		 * The sweep tick of the last access, used for eviction
+		 */
+		private volatile int lastAccessTick;
+		private MinimalMember(long id, @NonNull long[] roleIds){
 			this.guild = null;
 			this.id = id;
 			this.roleIds = roleIds;
 		}
 		@NonNull public MinimalGuild getGuild(){ return guild; }
-		@NonNull public Snowflake getId(){ return id; }
+		private void markAccessed(){
+			// only write if needed, most accesses happen within the same tick
+			int tick = currentTick;
+			if(lastAccessTick != tick) lastAccessTick = tick;
+		}
+		@NonNull public Snowflake getId(){ return Snowflake.of(id); }
 		/**
-		 *
-		 * @return
+		 * @param roleId The ID of the role
+		 * @return Whether this member has the role, always {@code true} for the everyone role
+		 */
+		public boolean hasRole(long roleId){
+			return roleId == guild.id || Arrays.binarySearch(roleIds, roleId) >= 0;
+		}
+		/**
+		 * @return All roles of this member including the everyone role, sorted by their position
 		 */
 		@NonNull public Stream<MinimalRole> getRoles(){
-			return guild.getRoles()
-					.filter(role -> role.getId().equals(role.getGuildId()) || roleIds.contains(role.getId()));
+			RoleMask mask = getRoleMask();
+			return mask.stream().mapToObj(i -> mask.sortedRoles[i]);
 		}
 		/**
-		 *
-		 * @return
+		 * @return The roles of this member as a bitmask over the sorted roles of the guild, only recomputed after the roles of the guild changed
+		 */
+		@NonNull private RoleMask getRoleMask(){
+			MinimalRole[] sortedRoles = guild.sortedRoles;
+			RoleMask mask = roleMask;
+			if(mask != null && mask.sortedRoles == sortedRoles) return mask;
+			long[] bits = new long[(sortedRoles.length + 63) >>> 6];
+			for(int i = 0; i < sortedRoles.length; i++){
+				if(hasRole(sortedRoles[i].id)) bits[i >>> 6] |= 1L << i;
+			}
+			mask = new RoleMask(sortedRoles, bits);
+			roleMask = mask;
+			return mask;
+		}
+		/**
+		 * @return The permissions this member has in the guild without looking at channel overwrites
 		 */
 		@NonNull public PermissionSet getBasePermissions(){
-			if(guild.getOwnerId().equals(id)) return PermissionSet.all();
-			return PermissionUtil.computeBasePermissions(PermissionSet.none(), getRoles().map(MinimalRole::getPermissions).collect(Collectors.toList()));
+			if(guild.isOwner(id)) return PermissionSet.all();
+			long version = guild.permissionsVersion.get();
+			MemoizedPermissions memoized = basePermissions;
+			if(memoized != null && memoized.version == version) return memoized.permissions;
+			PermissionSet permissions = computeBasePermissions(getRoleMask());
+			basePermissions = new MemoizedPermissions(version, permissions);
+			return permissions;
 		}
 		/**
+		 * The result is memoized per channel, for up to {@link #MAX_MEMOIZED_CHANNELS} channels, until the roles or
+		 * channels of the guild change.
 		 *
-		 * @param channelId
-		 * @return
+		 * @param channelId The ID of the channel
+		 * @return The permissions this member has in the channel
 		 */
 		@NonNull public PermissionSet getEffectivePermissions(@NonNull Snowflake channelId){
-			if(guild.getOwnerId().equals(id)) return PermissionSet.all();
-			PermissionSet basePermissions = getBasePermissions();
-			List<Snowflake> sortedRoleIds = getRoles().map(MinimalRole::getId).collect(Collectors.toList());
-			MinimalChannel channel = guild.getChannel(channelId).orElse(null);
-			if(channel != null){
-				List<PermissionOverwrite> overwrites = channel.getPermissionOverwrites().stream()
-						.filter(overwrite -> overwrite.getRoleId().map(roleIds::contains).orElse(false))
-						.sorted(Comparator.comparingInt(overwrite -> sortedRoleIds.indexOf(overwrite.getTargetId())))
-						.collect(Collectors.toList());
-				PermissionOverwrite memberOverwrite = channel.getPermissionOverwrites().stream()
-						.filter(overwrite -> overwrite.getMemberId().map(id::equals).orElse(false))
-						.findAny().orElse(null);
-				return PermissionUtil.computePermissions(getBasePermissions(), null, overwrites, memberOverwrite);
+			if(guild.isOwner(id)) return PermissionSet.all();
+			long version = guild.permissionsVersion.get();
+			ChannelPermissions memoized = effectivePermissions;
+			if(memoized != null && memoized.version == version){
+				int index = memoized.indexOf(channelId.asLong());
+				if(index >= 0) return memoized.permissions[index];
 			}
-			return basePermissions;
+			PermissionSet permissions = computeEffectivePermissions(channelId);
+			effectivePermissions = memoized != null && memoized.version == version
+					? memoized.with(channelId.asLong(), permissions)
+					: new ChannelPermissions(version, new long[]{channelId.asLong()}, new PermissionSet[]{permissions});
+			return permissions;
+		}
+		@NonNull private PermissionSet computeBasePermissions(@NonNull RoleMask mask){
+			return PermissionSet.of(computeRawBasePermissions(mask));
+		}
+		private long computeRawBasePermissions(@NonNull RoleMask mask){
+			long permissions = 0;
+			for(int i = mask.nextRole(0); i >= 0; i = mask.nextRole(i + 1)) permissions |= mask.sortedRoles[i].permissions;
+			return permissions;
+		}
+		@NonNull private PermissionSet computeEffectivePermissions(@NonNull Snowflake channelId){
+			RoleMask mask = getRoleMask();
+			long basePermissions = computeRawBasePermissions(mask);
+			MinimalChannel channel = guild.channels.get(channelId.asLong());
+			if(channel == null) return PermissionSet.of(basePermissions);
+			return PermissionSet.of(channel.applyOverwrites(basePermissions, mask, id));
+		}
+	}
+	
+	/**
+	 * The roles of a member as bits over the indices of {@link MinimalGuild#sortedRoles}
+	 */
+	private static class RoleMask {
+		private final MinimalRole[] sortedRoles;
+		private final long[] bits;
+		private RoleMask(@NonNull MinimalRole[] sortedRoles, @NonNull long[] bits){
+			this.sortedRoles = sortedRoles;
+			this.bits = bits;
+		}
+		/**
+		 * @param fromIndex The index to start searching at
+		 * @return The index of the next role of the member or {@code -1} if there is none
+		 */
+		private int nextRole(int fromIndex){
+			int word = fromIndex >>> 6;
+			if(word >= bits.length) return -1;
+			long current = bits[word] & (-1L << fromIndex);
+			while(true){
+				if(current != 0) return (word << 6) + Long.numberOfTrailingZeros(current);
+				if(++word == bits.length) return -1;
+				current = bits[word];
+			}
+		}
+		@NonNull private IntStream stream(){
+			return IntStream.iterate(nextRole(0), i -> i >= 0, i -> nextRole(i + 1));
+		}
+	}
+	
+	private static class SelfPermissions {
+		private final long version;
+		private final long permissions;
+		private SelfPermissions(long version, long permissions){
+			this.version = version;
+			this.permissions = permissions;
+		}
+	}
+	
+	/**
+	 * Effective permissions of a member in several channels. Immutable, adding a channel creates a new instance, so
+	 * concurrent readers never see a partially written entry. Once full the oldest channel gets replaced.
+	 */
+	private static class ChannelPermissions {
+		private final long version;
+		private final long[] channelIds;
+		private final PermissionSet[] permissions;
+		private ChannelPermissions(long version, @NonNull long[] channelIds, @NonNull PermissionSet[] permissions){
+			this.version = version;
+			this.channelIds = channelIds;
+			this.permissions = permissions;
+		}
+		private int indexOf(long channelId){
+			for(int i = 0; i < channelIds.length; i++){
+				if(channelIds[i] == channelId) return i;
+			}
+			return -1;
+		}
+		@NonNull private ChannelPermissions with(long channelId, @NonNull PermissionSet permissions){
+			// the entries are ordered from oldest to newest, the oldest one is dropped when full
+			int from = channelIds.length == MAX_MEMOIZED_CHANNELS ? 1 : 0;
+			int length = channelIds.length - from;
+			long[] newChannelIds = new long[length + 1];
+			PermissionSet[] newPermissions = new PermissionSet[length + 1];
+			System.arraycopy(channelIds, from, newChannelIds, 0, length);
+			System.arraycopy(this.permissions, from, newPermissions, 0, length);
+			newChannelIds[length] = channelId;
+			newPermissions[length] = permissions;
+			return new ChannelPermissions(version, newChannelIds, newPermissions);
+		}
+	}
+	
+	private static class MemoizedPermissions {
+		private final long version;
+		private final PermissionSet permissions;
+		private MemoizedPermissions(long version, @NonNull PermissionSet permissions){
+			this.version = version;
+			this.permissions = permissions;
 		}
 	}
 	
@@ -0,0 +1,193 @@
+package de.l0c4lh057.templatebot.data;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import discord4j.common.util.Snowflake;
+import discord4j.rest.RestClient;
+import discord4j.rest.http.client.ClientException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Mono;
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through access to the members in the {@link DiscordCache}. Members that are not cached (e.g. because they did
+ * not write anything since the bot restarted) get fetched from the API and added to the cache.
+ * <p>
+ * Concurrent lookups of the same member share a single request. The number of requests running at the same time is
+ * limited and members that do not exist are not requested again for some time, so many messages of uncached
+ * users can not cause a flood of API requests.
+ */
+public class MemberLoader {
+	
+	private MemberLoader(){}
+	
+	private static final Logger logger = LogManager.getLogger("MemberLoader");
+	
+	// TODO: adjust member loading limits
+	private static final int MAX_IN_FLIGHT = 50;
+	private static final long MAX_FAILED_ENTRIES = 10_000;
+	private static final Duration FAILED_EXPIRE_AFTER_WRITE = Duration.ofMinutes(5);
+	
+	@Nullable private static volatile RestClient restClient = null;
+	
+	private static final Map<MemberKey, Mono<DiscordCache.MinimalMember>> inFlight = new ConcurrentHashMap<>();
+	private static final AtomicInteger inFlightCount = new AtomicInteger();
+	/**
+	 * Members that do not exist, e.g. because they left the guild in the meantime
+	 */
+	private static final Cache<MemberKey, Boolean> failed = Caffeine.newBuilder()
+			.maximumSize(MAX_FAILED_ENTRIES)
+			.expireAfterWrite(FAILED_EXPIRE_AFTER_WRITE)
+			.build();
+	
+	private static final LongAdder loads = new LongAdder();
+	private static final LongAdder coalesced = new LongAdder();
+	private static final LongAdder rejected = new LongAdder();
+	private static final LongAdder failedHits = new LongAdder();
+	
+	/**
+	 * Sets the {@link RestClient} used by {@link #getMember(Snowflake, Snowflake)}. This should get called once the
+	 * bot logged in.
+	 *
+	 * @param rest The {@link RestClient} of the bot
+	 */
+	public static void setRestClient(@NonNull RestClient rest){
+		restClient = rest;
+	}
+	
+	/**
+	 * Gets a member from the {@link DiscordCache}, fetching it from the API with the {@link RestClient} set by
+	 * {@link #setRestClient(RestClient)} if it is not cached.
+	 *
+	 * @param guildId The ID of the guild
+	 * @param userId  The ID of the user
+	 * @return A {@link Mono} emitting the {@link DiscordCache.MinimalMember}. It is empty if the guild is not cached,
+	 * the member does not exist or too many members are being fetched at the moment. It contains an error if fetching
+	 * the member failed for another reason. Before the bot logged in
+	 * only cached members are emitted.
+	 */
+	@NonNull
+	public static Mono<DiscordCache.MinimalMember> getMember(@NonNull Snowflake guildId, @NonNull Snowflake userId){
+		RestClient rest = restClient;
+		if(rest == null) return Mono.justOrEmpty(DiscordCache.getGuild(guildId).flatMap(guild -> guild.getMember(userId)));
+		return getMember(rest, guildId, userId);
+	}
+	
+	/**
+	 * Gets a member from the {@link DiscordCache}, fetching it from the API if it is not cached.
+	 *
+	 * @param rest    The {@link RestClient} used to fetch the member
+	 * @param guildId The ID of the guild
+	 * @param userId  The ID of the user
+	 * @return A {@link Mono} emitting the {@link DiscordCache.MinimalMember}. It is empty if the guild is not cached,
+	 * the member does not exist or too many members are being fetched at the moment. It contains an error if fetching
+	 * the member failed for another reason.
+	 */
+	@NonNull
+	public static Mono<DiscordCache.MinimalMember> getMember(@NonNull RestClient rest, @NonNull Snowflake guildId, @NonNull Snowflake userId){
+		Optional<DiscordCache.MinimalGuild> guild = DiscordCache.getGuild(guildId);
+		if(!guild.isPresent()) return Mono.empty();
+		Optional<DiscordCache.MinimalMember> member = guild.get().getMember(userId);
+		if(member.isPresent()) return Mono.just(member.get());
+		MemberKey key = new MemberKey(guildId.asLong(), userId.asLong());
+		return Mono.defer(() -> {
+			if(failed.getIfPresent(key) != null){
+				failedHits.increment();
+				return Mono.empty();
+			}
+			boolean[] started = new boolean[1];
+			Mono<DiscordCache.MinimalMember> load = inFlight.computeIfAbsent(key, k -> {
+				if(inFlightCount.incrementAndGet() > MAX_IN_FLIGHT){
+					inFlightCount.decrementAndGet();
+					return null;
+				}
+				started[0] = true;
+				return load(rest, k);
+			});
+			if(load == null){
+				rejected.increment();
+				logger.debug("Not fetching member {} of guild {}, too many members are being fetched", userId.asString(), guildId.asString());
+				return Mono.empty();
+			}
+			if(!started[0]) coalesced.increment();
+			return load;
+		});
+	}
+	
+	@NonNull
+	private static Mono<DiscordCache.MinimalMember> load(@NonNull RestClient rest, @NonNull MemberKey key){
+		loads.increment();
+		return rest.getGuildService().getGuildMember(key.guildId, key.userId)
+				.flatMap(data -> DiscordCache.addMember(key.guildId, data))
+				// only remember members that do not exist, transient errors like 429 or 5xx are not cached
+				.onErrorResume(ClientException.isStatusCode(404), ex -> {
+					logger.debug("Member {} of guild {} does not exist", key.userId, key.guildId);
+					failed.put(key, Boolean.TRUE);
+					return Mono.empty();
+				})
+				.doOnError(ex -> logger.debug("Could not fetch member {} of guild {}", key.userId, key.guildId, ex))
+				.doFinally(signal -> {
+					inFlight.remove(key);
+					inFlightCount.decrementAndGet();
+				})
+				.cache();
+	}
+	
+	/**
+	 * @return The number of members that got fetched from the API
+	 */
+	public static long getLoadCount(){
+		return loads.sum();
+	}
+	
+	/**
+	 * @return The number of lookups that waited for a request that was already running
+	 */
+	public static long getCoalescedCount(){
+		return coalesced.sum();
+	}
+	
+	/**
+	 * @return The number of lookups that did not fetch the member because the in-flight limit was reached
+	 */
+	public static long getRejectedCount(){
+		return rejected.sum();
+	}
+	
+	/**
+	 * @return The number of lookups that did not fetch the member because it did not exist recently
+	 */
+	public static long getFailedHitCount(){
+		return failedHits.sum();
+	}
+	
+	private static class MemberKey {
+		private final long guildId;
+		private final long userId;
+		private MemberKey(long guildId, long userId){
+			this.guildId = guildId;
+			this.userId = userId;
+		}
+		@Override
+		public boolean equals(Object o){
+			if(this == o) return true;
+			if(!(o instanceof MemberKey)) return false;
+			MemberKey other = (MemberKey)o;
+			return guildId == other.guildId && userId == other.userId;
+		}
+		@Override
+		public int hashCode(){
+			return Long.hashCode(guildId) * 31 + Long.hashCode(userId);
+		}
+	}
+	
+}
@@ -0,0 +1,146 @@
+package de.l0c4lh057.templatebot.data;
+
+import de.l0c4lh057.templatebot.utils.BotUtils;
+import de.l0c4lh057.templatebot.utils.LatencyHistogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.annotation.NonNull;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects messages that can not be commands before any settings get looked up. It knows the first character of every
+ * prefix that is used by any guild or user plus the first character of a mention of the bot. A message whose first
+ * character is none of them can not start with a prefix or mention, no matter which guild or user it belongs to.
+ * <p>
+ * Characters are never removed when a prefix changes, a stale character only lets a few more messages through.
+ * Prefixes set by other processes sharing the database are only known after the next reload, so they are accepted
+ * after at most {@link #RELOAD_INTERVAL}.
+ */
+public class PrefixFilter {
+	
+	private PrefixFilter(){}
+	
+	private static final Logger logger = LogManager.getLogger("PrefixFilter");
+	
+	// TODO: adjust sampling of the check latency
+	private static final int LATENCY_SAMPLE_RATE = 64;
+	// TODO: adjust reload interval
+	private static final Duration RELOAD_INTERVAL = Duration.ofMinutes(1);
+	
+	/**
+	 * Bitmap over all 65536 {@code char} values
+	 */
+	private static final AtomicLongArray firstChars = new AtomicLongArray(1 << 10);
+	private static volatile boolean acceptAll = false;
+	
+	private static final LongAdder checkedMessages = new LongAdder();
+	private static final LongAdder rejectedMessages = new LongAdder();
+	private static final LatencyHistogram checkLatency = new LatencyHistogram();
+	
+	static {
+		addPrefix(BotUtils.DEFAULT_PREFIX);
+		// mentions of the bot
+		addPrefix("<");
+	}
+	
+	/**
+	 * Loads all prefixes stored in the database. This should get called before logging in.
+	 *
+	 * @return An empty {@link Mono} completing once all prefixes are loaded
+	 */
+	@NonNull
+	public static Mono<Void> loadPrefixes(){
+		return DataHandler.getPrefixes()
+				.doOnNext(PrefixFilter::addPrefix)
+				.count()
+				.doOnNext(count -> logger.info("Loaded {} distinct prefixes", count))
+				.then();
+	}
+	
+	/**
+	 * Loads all prefixes stored in the database again every {@link #RELOAD_INTERVAL}, so prefixes that got set by other
+	 * processes are accepted as well.
+	 *
+	 * @return An empty {@link Mono} containing the periodic reload
+	 */
+	@NonNull
+	public static Mono<Void> reloadPrefixes(){
+		return Flux.interval(RELOAD_INTERVAL, RELOAD_INTERVAL)
+				.onBackpressureDrop()
+				.concatMap(i -> DataHandler.getPrefixes()
+						.doOnNext(PrefixFilter::addPrefix)
+						.then()
+						// a failed reload must not end the reloading
+						.onErrorResume(err -> {
+							logger.warn("Could not reload prefixes", err);
+							return Mono.empty();
+						}))
+				.then();
+	}
+	
+	/**
+	 * Makes the filter accept messages starting with the first character of this prefix.
+	 *
+	 * @param prefix The prefix
+	 */
+	public static void addPrefix(@NonNull String prefix){
+		if(prefix.isEmpty()){
+			acceptAll = true;
+			return;
+		}
+		char c = prefix.charAt(0);
+		long bit = 1L << c;
+		int index = c >>> 6;
+		long bits;
+		do{
+			bits = firstChars.get(index);
+		}while((bits & bit) == 0 && !firstChars.compareAndSet(index, bits, bits | bit));
+	}
+	
+	/**
+	 * @param content The content of the message
+	 * @return Whether the message might start with a prefix or mention, {@code false} if it can not be a command
+	 */
+	public static boolean mightBeCommand(@NonNull String content){
+		boolean sample = ThreadLocalRandom.current().nextInt(LATENCY_SAMPLE_RATE) == 0;
+		long start = sample ? System.nanoTime() : 0;
+		boolean result = acceptAll || (!content.isEmpty() && isFirstChar(content.charAt(0)));
+		if(sample) checkLatency.recordSince(start);
+		checkedMessages.increment();
+		if(!result) rejectedMessages.increment();
+		return result;
+	}
+	
+	private static boolean isFirstChar(char c){
+		return (firstChars.get(c >>> 6) & (1L << c)) != 0;
+	}
+	
+	/**
+	 * @return The number of messages checked by {@link #mightBeCommand(String)}
+	 */
+	public static long getCheckedCount(){
+		return checkedMessages.sum();
+	}
+	
+	/**
+	 * @return The number of messages rejected by {@link #mightBeCommand(String)}
+	 */
+	public static long getRejectedCount(){
+		return rejectedMessages.sum();
+	}
+	
+	/**
+	 * @return The {@link LatencyHistogram} of a sample of the checks done by {@link #mightBeCommand(String)}
+	 */
+	@NonNull
+	public static LatencyHistogram getCheckLatency(){
+		return checkLatency;
+	}
+	
+}
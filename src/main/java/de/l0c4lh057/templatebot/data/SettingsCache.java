@@ -0,0 +1,167 @@
+package de.l0c4lh057.templatebot.data;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import discord4j.common.util.Snowflake;
+import reactor.core.publisher.Mono;
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Cache for the settings stored in the database. Every guild and user is stored as a single {@link DBGuild} or
+ * {@link DBUser} record so that prefix and language only need one query on a cache miss.
+ * <p>
+ * Loads are single-flight: if multiple lookups for the same ID happen while it is not cached yet, all of them wait
+ * for the same database query. Entries are evicted based on size (Window TinyLFU, so frequently used entries are kept)
+ * and after not being accessed for a certain time.
+ */
+public class SettingsCache {
+	
+	private SettingsCache(){}
+	
+	// TODO: adjust cache sizes
+	private static final long MAX_GUILDS = 10_000;
+	private static final long MAX_USERS = 10_000;
+	private static final Duration EXPIRE_AFTER_ACCESS = Duration.ofHours(1);
+	
+	private static final AsyncLoadingCache<Long, DBGuild> guilds = Caffeine.newBuilder()
+			.maximumSize(MAX_GUILDS)
+			.expireAfterAccess(EXPIRE_AFTER_ACCESS)
+			.recordStats()
+			.buildAsync((guildId, executor) -> DataHandler.getGuild(Snowflake.of(guildId)).toFuture());
+	
+	private static final AsyncLoadingCache<Long, DBUser> users = Caffeine.newBuilder()
+			.maximumSize(MAX_USERS)
+			.expireAfterAccess(EXPIRE_AFTER_ACCESS)
+			.recordStats()
+			.buildAsync((userId, executor) -> DataHandler.getUser(Snowflake.of(userId)).toFuture());
+	
+	/**
+	 * Gets the settings of a guild, loading them from the database if they are not cached.
+	 *
+	 * @param guildId The ID of the guild
+	 * @return A {@link Mono} emitting the {@link DBGuild}, or an empty {@link Mono} if the guild is not in the database
+	 */
+	@NonNull
+	public static Mono<DBGuild> getGuild(@NonNull Snowflake guildId){
+		return Mono.fromFuture(guilds.get(guildId.asLong()));
+	}
+	
+	/**
+	 * Gets the settings of a user, loading them from the database if they are not cached.
+	 *
+	 * @param userId The ID of the user
+	 * @return A {@link Mono} emitting the {@link DBUser}, or an empty {@link Mono} if the user is not in the database
+	 */
+	@NonNull
+	public static Mono<DBUser> getUser(@NonNull Snowflake userId){
+		return Mono.fromFuture(users.get(userId.asLong()));
+	}
+	
+	/**
+	 * Gets the settings of a guild without loading anything, so it never causes a database access. The lookup is recorded in the cache statistics.
+	 *
+	 * @param guildId The ID of the guild
+	 * @return The {@link DBGuild} or null if it is not cached or still being loaded
+	 */
+	@Nullable
+	public static DBGuild getCachedGuild(@NonNull Snowflake guildId){
+		CompletableFuture<DBGuild> guild = guilds.getIfPresent(guildId.asLong());
+		return guild != null && guild.isDone() && !guild.isCompletedExceptionally() ? guild.join() : null;
+	}
+	
+	/**
+	 * Gets the settings of a user without loading anything, so it never causes a database access. The lookup is recorded in the cache statistics.
+	 *
+	 * @param userId The ID of the user
+	 * @return The {@link DBUser} or null if it is not cached or still being loaded
+	 */
+	@Nullable
+	public static DBUser getCachedUser(@NonNull Snowflake userId){
+		CompletableFuture<DBUser> user = users.getIfPresent(userId.asLong());
+		return user != null && user.isDone() && !user.isCompletedExceptionally() ? user.join() : null;
+	}
+	
+	/**
+	 * Updates the prefix of a cached guild. If the guild is currently being loaded the update is applied once loading
+	 * finished. Nothing happens if the guild is not cached.
+	 *
+	 * @param guildId The ID of the guild
+	 * @param prefix  The new prefix
+	 */
+	public static void setGuildPrefix(@NonNull Snowflake guildId, @NonNull String prefix){
+		PrefixFilter.addPrefix(prefix);
+		guilds.asMap().computeIfPresent(guildId.asLong(), (id, guild) -> guild.thenApply(g -> g == null ? null : g.withPrefix(prefix)));
+	}
+	
+	/**
+	 * Updates the language of a cached guild. If the guild is currently being loaded the update is applied once loading
+	 * finished. Nothing happens if the guild is not cached.
+	 *
+	 * @param guildId  The ID of the guild
+	 * @param language The new language
+	 */
+	public static void setGuildLanguage(@NonNull Snowflake guildId, @NonNull String language){
+		guilds.asMap().computeIfPresent(guildId.asLong(), (id, guild) -> guild.thenApply(g -> g == null ? null : g.withLanguage(language)));
+	}
+	
+	/**
+	 * Updates the prefix of a cached user. If the user is currently being loaded the update is applied once loading
+	 * finished. Nothing happens if the user is not cached.
+	 *
+	 * @param userId The ID of the user
+	 * @param prefix The new prefix
+	 */
+	public static void setUserPrefix(@NonNull Snowflake userId, @NonNull String prefix){
+		PrefixFilter.addPrefix(prefix);
+		users.asMap().computeIfPresent(userId.asLong(), (id, user) -> user.thenApply(u -> u == null ? null : u.withPrefix(prefix)));
+	}
+	
+	/**
+	 * Updates the language of a cached user. If the user is currently being loaded the update is applied once loading
+	 * finished. Nothing happens if the user is not cached.
+	 *
+	 * @param userId   The ID of the user
+	 * @param language The new language
+	 */
+	public static void setUserLanguage(@NonNull Snowflake userId, @NonNull String language){
+		users.asMap().computeIfPresent(userId.asLong(), (id, user) -> user.thenApply(u -> u == null ? null : u.withLanguage(language)));
+	}
+	
+	/**
+	 * @return The hit, miss, load and eviction statistics of the guild settings cache. The load times include the time
+	 * spent waiting for a database connection.
+	 */
+	@NonNull
+	public static CacheStats getGuildStats(){
+		return guilds.synchronous().stats();
+	}
+	
+	/**
+	 * @return The hit, miss, load and eviction statistics of the user settings cache. The load times include the time
+	 * spent waiting for a database connection.
+	 */
+	@NonNull
+	public static CacheStats getUserStats(){
+		return users.synchronous().stats();
+	}
+	
+	/**
+	 * @return The approximate number of cached guilds
+	 */
+	public static long getGuildCount(){
+		return guilds.synchronous().estimatedSize();
+	}
+	
+	/**
+	 * @return The approximate number of cached users
+	 */
+	public static long getUserCount(){
+		return users.synchronous().estimatedSize();
+	}
+	
+}
@@ -3,9 +3,12 @@ package de.l0c4lh057.templatebot.main;
 import de.l0c4lh057.templatebot.commands.Commands;
 import de.l0c4lh057.templatebot.data.DataHandler;
 import de.l0c4lh057.templatebot.data.DiscordCache;
+import de.l0c4lh057.templatebot.data.MemberLoader;
+import de.l0c4lh057.templatebot.data.PrefixFilter;
 import de.l0c4lh057.templatebot.utils.BotUtils;
 import discord4j.common.retry.ReconnectOptions;
 import discord4j.core.DiscordClient;
+import discord4j.core.event.dispatch.DispatchEventMapper;
 import discord4j.core.shard.ShardingStrategy;
 import discord4j.gateway.intent.Intent;
 import discord4j.gateway.intent.IntentSet;
@@ -24,6 +27,8 @@ public class BotMain {
 		logger.info("Program started");
 		BotUtils.initialize();
 		Commands.registerCommands();
+		DiscordCache.loadSnapshot();
+		Runtime.getRuntime().addShutdownHook(new Thread(DiscordCache::writeSnapshot));
 		Mono<Void> onDisconnect = DiscordClient.builder(Credentials.BOT_TOKEN)
 				.build()
 				.gateway()
@@ -40,14 +45,21 @@ public class BotMain {
 				))
 				// disable cache, using own cache to only cache needed data in data.DiscordCache
 				.setStoreService(new NoOpStoreService())
-				.withGateway(client -> Mono.when(
-						// register everything that needs the client as parameter here
-						Events.registerEvents(client),
-						DiscordCache.registerEvents(client),
-						client.onDisconnect()
-				));
+				// fill data.DiscordCache directly from the gateway payloads
+				.setDispatchEventMapper(DiscordCache.dispatchEventMapper(DispatchEventMapper.emitEvents()))
+				.withGateway(client -> {
+					MemberLoader.setRestClient(client.getRestClient());
+					return Mono.when(
+							// register everything that needs the client as parameter here
+							Events.registerEvents(client),
+							DiscordCache.registerEvents(client),
+							PrefixFilter.reloadPrefixes(),
+							client.onDisconnect()
+					);
+				});
 		
 		DataHandler.initialize()
+				.then(PrefixFilter.loadPrefixes())
 				.then(onDisconnect)
 				.doOnError(err -> {
 					// This should never happen. If it does something really is messed up.
@@ -57,5 +69,5 @@ public class BotMain {
 				.block();
 		logger.warn("Reached the end of the program");
 	}
-
+	
 }
@@ -1,28 +1,43 @@
 package de.l0c4lh057.templatebot.main;
 
 import de.l0c4lh057.templatebot.commands.ArgumentList;
-import de.l0c4lh057.templatebot.commands.Command;
 import de.l0c4lh057.templatebot.commands.Commands;
 import de.l0c4lh057.templatebot.commands.Context;
+import de.l0c4lh057.templatebot.data.DBGuild;
+import de.l0c4lh057.templatebot.data.DBUser;
 import de.l0c4lh057.templatebot.data.DataHandler;
 import de.l0c4lh057.templatebot.data.DiscordCache;
+import de.l0c4lh057.templatebot.data.PrefixFilter;
+import de.l0c4lh057.templatebot.data.SettingsCache;
 import de.l0c4lh057.templatebot.utils.BotUtils;
+import de.l0c4lh057.templatebot.utils.ratelimits.AbuseShield;
+import discord4j.common.util.Snowflake;
 import discord4j.core.GatewayDiscordClient;
 import discord4j.core.event.domain.guild.GuildCreateEvent;
 import discord4j.core.event.domain.lifecycle.ReadyEvent;
 import discord4j.core.event.domain.message.MessageCreateEvent;
 import discord4j.core.object.entity.Guild;
 import discord4j.core.object.entity.User;
+import discord4j.discordjson.json.EmbedData;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import reactor.core.publisher.Mono;
 import reactor.function.TupleUtils;
 import reactor.util.annotation.NonNull;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+
+import java.time.Duration;
 
 public class Events {
 	
 	private static final Logger logger = LogManager.getLogger("Events");
 	
+	// TODO: adjust guild batching
+	private static final int GUILD_BATCH_SIZE = 500;
+	private static final Duration GUILD_BATCH_WINDOW = Duration.ofMillis(250);
+	private static final int GUILD_BATCH_CONCURRENCY = 2;
+	
 	/**
 	 * Registers most of the important events this bot needs to function
 	 *
@@ -39,54 +54,94 @@ public class Events {
 						.doOnNext(event -> logger.info("Logged in as {}", event.getSelf().getTag())),
 				
 				/* Put all guilds in database when joining them */
+				// batched because on startup or reconnect we receive one GuildCreateEvent for every guild at once
 				client.on(GuildCreateEvent.class)
 						.map(GuildCreateEvent::getGuild)
 						.map(Guild::getId)
-						.flatMap(DataHandler::initializeGuild),
+						.bufferTimeout(GUILD_BATCH_SIZE, GUILD_BATCH_WINDOW)
+						// bufferTimeout can not wait for requests, finished batches are kept here while all batches are waiting for the database
+						.onBackpressureBuffer()
+						.flatMap(guildIds -> DataHandler.initializeGuilds(guildIds)
+								// a failed batch must not end the event handling
+								.onErrorResume(err -> {
+									logger.error("Could not initialize batch of {} guilds", guildIds.size(), err);
+									return Mono.empty();
+								}), GUILD_BATCH_CONCURRENCY)
+						// neither may any other error, it would end the command handler as well
+						.doOnError(err -> logger.error("Guild initialization failed, resubscribing", err))
+						.retry(),
 				
 				/* Command Handler */
 				client.on(MessageCreateEvent.class)
+						// drop messages that can not start with any prefix or mention before looking up any settings
+						.filter(event -> PrefixFilter.mightBeCommand(event.getMessage().getContent()))
 						// ignore bots and webhooks
 						.filter(event -> !event.getMessage().getAuthor().map(User::isBot).orElse(true))
-						// add members to the member cache here instead of DiscordCache class to ensure that it is saved before command execution
-						.doOnNext(event -> event.getMember().ifPresent(DiscordCache::addMember))
-						.flatMap(event -> Mono.justOrEmpty(event.getMessage().getAuthor())
-								// put user in database if message came from DM
-								.flatMap(user -> {
-									if(event.getGuildId().isPresent()) return Mono.empty();
-									else return DataHandler.initializeUser(user.getId());
-								})
-								.then(
-										event.getGuildId().map(id -> BotUtils.getGuildPrefix(id).zipWith(BotUtils.getGuildLanguage(id)))
-												.orElseGet(() -> event.getMessage().getAuthor().map(User::getId).map(id -> BotUtils.getUserPrefix(id)
-														.zipWith(BotUtils.getUserLanguage(id))
-												).orElseThrow())
-								)
+						.flatMap(event -> getSettings(event)
 								.flatMap(TupleUtils.function((String prefix, String language) -> {
 									String content = event.getMessage().getContent();
-									String strippedContent = null;
-									if(content.startsWith("<@" + selfId + ">")){
-										strippedContent = content.substring(3 + selfId.length());
-										if(strippedContent.startsWith(" ")) strippedContent = strippedContent.substring(1);
-									}else if(content.startsWith("<@!" + selfId + ">")){
-										strippedContent = content.substring(4 + selfId.length());
-										if(strippedContent.startsWith(" ")) strippedContent = strippedContent.substring(1);
-									}else if(content.startsWith(prefix)){
-										strippedContent = content.substring(prefix.length());
-									}
-									// message does not start with command prefix
-									if(strippedContent == null) return Mono.empty();
-									int spaceIndex = strippedContent.indexOf(' ');
-									if(spaceIndex == 0) return Mono.empty();
-									Command command = Commands.getCommand(spaceIndex > 0 ? strippedContent.substring(0, spaceIndex) : strippedContent);
-									// command does not exist
-									if(command == null) return Mono.empty();
+									Commands.CommandMatch match = Commands.matchCommand(content, prefix, selfId);
+									// message does not start with command prefix or command does not exist
+									if(match == null) return Mono.empty();
+									// drop users and channels flooding commands before any parsing or permission checks
+									if(!passesAbuseShield(event, language)) return Mono.empty();
 									
-									ArgumentList args = spaceIndex == -1 ? ArgumentList.empty() : ArgumentList.of(strippedContent.substring(spaceIndex + 1));
-									return command.execute(Context.ofEvent(event), language, prefix, args);
+									int argumentOffset = match.getArgumentOffset();
+									ArgumentList args = argumentOffset == -1 ? ArgumentList.empty() : ArgumentList.of(content, argumentOffset);
+									// add members to the member cache here instead of DiscordCache class to ensure that it is saved before command execution
+									return Mono.justOrEmpty(event.getMember()).flatMap(DiscordCache::addMember)
+											.then(Mono.defer(() -> match.getCommand().execute(Context.ofEvent(event), language, prefix, args)));
 								}))
 						)
 		);
 	}
 	
+	/**
+	 * Gets prefix and language of the guild or, in DMs, of the user. Cached settings are used directly, so messages of
+	 * active guilds and users do not cause any database access.
+	 *
+	 * @param event The {@link MessageCreateEvent} of a message with an author
+	 * @return A {@link Mono} emitting the prefix and language
+	 */
+	@NonNull
+	private static Mono<Tuple2<String, String>> getSettings(@NonNull MessageCreateEvent event){
+		Snowflake guildId = event.getGuildId().orElse(null);
+		if(guildId != null){
+			DBGuild cached = SettingsCache.getCachedGuild(guildId);
+			if(cached != null) return Mono.just(Tuples.of(cached.getPrefix(), cached.getLanguage()));
+			return SettingsCache.getGuild(guildId).map(guild -> Tuples.of(guild.getPrefix(), guild.getLanguage()));
+		}
+		Snowflake userId = event.getMessage().getAuthor().map(User::getId).orElseThrow();
+		DBUser cached = SettingsCache.getCachedUser(userId);
+		if(cached != null) return Mono.just(Tuples.of(cached.getPrefix(), cached.getLanguage()));
+		// put user in database if message came from DM, a cached user is already in the database
+		return DataHandler.initializeUser(userId)
+				.then(SettingsCache.getUser(userId))
+				.map(user -> Tuples.of(user.getPrefix(), user.getLanguage()));
+	}
+	
+	/**
+	 * Checks the command message against the {@link AbuseShield} and, if this is the first dropped message in the
+	 * cooldown, tells the user or channel that commands are ignored for now.
+	 *
+	 * @param event    The {@link MessageCreateEvent} of a command message with an author
+	 * @param language The language of the guild or user
+	 * @return Whether the command should get executed
+	 */
+	private static boolean passesAbuseShield(@NonNull MessageCreateEvent event, @NonNull String language){
+		Snowflake guildId = event.getGuildId().orElse(null);
+		Snowflake userId = event.getMessage().getAuthor().map(User::getId).orElseThrow();
+		AbuseShield.Verdict verdict = AbuseShield.check(guildId, event.getMessage().getChannelId(), userId);
+		if(verdict.isAllowed()) return true;
+		if(verdict == AbuseShield.Verdict.DROP) return false;
+		String key = verdict == AbuseShield.Verdict.DROP_AND_REPLY_USER ? "exception.ratelimited.user" : "exception.ratelimited.channel";
+		Context.ofEvent(event).respond(EmbedData.builder()
+				.title(BotUtils.getLanguageString(language, "exception.ratelimited.title"))
+				.description(BotUtils.getLanguageString(language, key))
+				.color(BotUtils.COLOR_LIGHT_RED.getRGB())
+				.build()
+		).subscribe(message -> {}, err -> logger.debug("Could not send ratelimit reply", err));
+		return false;
+	}
+	
 }
@@ -4,7 +4,7 @@ import de.l0c4lh057.templatebot.commands.Command;
 import de.l0c4lh057.templatebot.commands.Commands;
 import de.l0c4lh057.templatebot.data.DBGuild;
 import de.l0c4lh057.templatebot.data.DBUser;
-import de.l0c4lh057.templatebot.data.DataHandler;
+import de.l0c4lh057.templatebot.data.SettingsCache;
 import discord4j.common.util.Snowflake;
 import discord4j.core.object.reaction.ReactionEmoji;
 import discord4j.core.spec.EmbedCreateSpec;
@@ -21,7 +21,6 @@ import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 public class BotUtils {
 	
@@ -52,52 +51,30 @@ public class BotUtils {
 	public static final ReactionEmoji EMOJI_X = ReactionEmoji.unicode("\u274C");
 	public static final ReactionEmoji EMOJI_CHECKMARK = ReactionEmoji.unicode("\u2705");
 	
-	private static final Map<Long, String> guildPrefixes = new WeakHashMap<>();
 	@NonNull public static Mono<String> getGuildPrefix(@NonNull Snowflake guildId){
-		String prefix = guildPrefixes.get(guildId.asLong());
-		if(prefix != null) return Mono.just(prefix);
-		return DataHandler.getGuild(guildId)
-				.map(DBGuild::getPrefix)
-				.doOnNext(pref -> guildPrefixes.put(guildId.asLong(), pref));
+		return SettingsCache.getGuild(guildId).map(DBGuild::getPrefix);
 	}
 	public static void setGuildPrefix(Snowflake guildId, String prefix){
-		guildPrefixes.put(guildId.asLong(), prefix);
+		SettingsCache.setGuildPrefix(guildId, prefix);
 	}
-	private static final Map<Long, String> guildLanguages = new WeakHashMap<>();
 	@NonNull public static Mono<String> getGuildLanguage(@NonNull Snowflake guildId){
-		String language = guildLanguages.get(guildId.asLong());
-		if(language != null) return Mono.just(language);
-		return DataHandler.getGuild(guildId)
-				.map(DBGuild::getLanguage)
-				.doOnNext(lang -> guildLanguages.put(guildId.asLong(), lang));
+		return SettingsCache.getGuild(guildId).map(DBGuild::getLanguage);
 	}
 	public static void setGuildLanguage(Snowflake guildId, String lang){
-		guildLanguages.put(guildId.asLong(), lang);
+		SettingsCache.setGuildLanguage(guildId, lang);
 	}
 	
-	private static final Map<Long, String> userPrefixes = new WeakHashMap<>();
 	@NonNull public static Mono<String> getUserPrefix(@NonNull Snowflake userId){
-		String prefix = userPrefixes.get(userId.asLong());
-		if(prefix != null) return Mono.just(prefix);
-		return DataHandler.getUser(userId)
-				.doOnNext(user -> userLanguages.put(userId.asLong(), user.getLanguage()))
-				.map(DBUser::getPrefix)
-				.doOnNext(pref -> userPrefixes.put(userId.asLong(), pref));
+		return SettingsCache.getUser(userId).map(DBUser::getPrefix);
 	}
 	public static void setUserPrefix(Snowflake userId, String prefix){
-		userPrefixes.put(userId.asLong(), prefix);
+		SettingsCache.setUserPrefix(userId, prefix);
 	}
-	private static final Map<Long, String> userLanguages = new WeakHashMap<>();
 	@NonNull public static Mono<String> getUserLanguage(@NonNull Snowflake userId){
-		String language = userLanguages.get(userId.asLong());
-		if(language != null) return Mono.just(language);
-		return DataHandler.getUser(userId)
-				.doOnNext(user -> userPrefixes.put(userId.asLong(), user.getPrefix()))
-				.map(DBUser::getLanguage)
-				.doOnNext(lang -> userLanguages.put(userId.asLong(), lang));
+		return SettingsCache.getUser(userId).map(DBUser::getLanguage);
 	}
 	public static void setUserLanguage(Snowflake userId, String language){
-		userLanguages.put(userId.asLong(), language);
+		SettingsCache.setUserLanguage(userId, language);
 	}
 	
 	@NonNull
@@ -134,14 +111,17 @@ public class BotUtils {
 	 */
 	@NonNull
 	public static EmbedData getHelpEmbedData(@NonNull String language, @NonNull String prefix, @NonNull Command.Category category){
+		StringBuilder description = new StringBuilder();
+		Commands.getCommands(category)
+				.sorted(Comparator.comparing(Command::getName))
+				.sorted(Comparator.comparing(Command::getHelpPagePosition))
+				.forEachOrdered(command -> {
+					if(description.length() > 0) description.append('\n');
+					Localization.formatTo(description, language, "help." + command.getName() + ".short", prefix);
+				});
 		return EmbedData.builder()
 				.title(getLanguageString(language, "help.category.title", category.getName(language)))
-				.description(Commands.getCommands(category)
-						.sorted(Comparator.comparing(Command::getName))
-						.sorted(Comparator.comparing(Command::getHelpPagePosition))
-						.map(command -> getLanguageString(language, "help." + command.getName() + ".short", prefix))
-						.collect(Collectors.joining("\n"))
-				)
+				.description(description.toString())
 				.footer(EmbedFooterData.builder()
 						.text(getLanguageString(language, "help.category.footer", category.getHelpPage(), Command.Category.values().length))
 						.build()
@@ -178,14 +158,14 @@ public class BotUtils {
 	 * The list of all languages a {@code strings} {@link ResourceBundle} was found for.
 	 */
 	private static final List<String> availableLanguages = new ArrayList<>();
-	private static final Map<String, ResourceBundle> bundles = new HashMap<>();
 	private static void loadResourceBundles(){
-		availableLanguages.forEach(lang -> bundles.put(lang, ResourceBundle.getBundle("strings", Locale.forLanguageTag(lang))));
+		Localization.load(availableLanguages);
 	}
 	
 	/**
 	 * Gets the string with the provided {@code key} from the {@code strings} {@link ResourceBundle} and formats it
-	 * with the provided arguments using {@link MessageFormat#format(Object)}.
+	 * with the provided arguments the same way {@link MessageFormat#format(Object)} would. The strings are compiled
+	 * once when loading the bundles, see {@link Localization}.
 	 *
 	 * @param language The language the returned string should be in
 	 * @param key      The key for the string in the {@link ResourceBundle}s
@@ -194,8 +174,7 @@ public class BotUtils {
 	 */
 	@NonNull
 	public static String getLanguageString(@NonNull String language, @NonNull String key, @NonNull Object... args){
-		if(args.length == 0) return bundles.get(language).getString(key);
-		else return new MessageFormat(bundles.get(language).getString(key), Locale.forLanguageTag(language)).format(args);
+		return Localization.format(language, key, args);
 	}
 	
 	/**
@@ -0,0 +1,89 @@
+package de.l0c4lh057.templatebot.utils;
+
+import reactor.util.annotation.NonNull;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram for latencies. Values are put into power-of-two buckets of nanoseconds, so percentiles are
+ * only accurate to a factor of two, which is enough to see where time is spent.
+ */
+public class LatencyHistogram {
+	
+	private static final int BUCKETS = 64;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+	
+	/**
+	 * @param nanos The measured latency in nanoseconds
+	 */
+	public void record(long nanos){
+		if(nanos < 0) nanos = 0;
+		// bucket i holds all values in [2^i, 2^(i+1))
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+		count.increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+	
+	/**
+	 * @param startNanos The value of {@link System#nanoTime()} at the start of the measured operation
+	 */
+	public void recordSince(long startNanos){
+		record(System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * @return The number of recorded values
+	 */
+	public long getCount(){
+		return count.sum();
+	}
+	
+	/**
+	 * @return The mean of all recorded values
+	 */
+	@NonNull
+	public Duration getMean(){
+		long c = count.sum();
+		return c == 0 ? Duration.ZERO : Duration.ofNanos(totalNanos.sum() / c);
+	}
+	
+	/**
+	 * @return The highest recorded value
+	 */
+	@NonNull
+	public Duration getMax(){
+		return Duration.ofNanos(maxNanos.get());
+	}
+	
+	/**
+	 * @param percentile The percentile between {@code 0} and {@code 1}
+	 * @return The upper bound of the bucket the percentile is in
+	 */
+	@NonNull
+	public Duration getPercentile(double percentile){
+		long c = count.sum();
+		if(c == 0) return Duration.ZERO;
+		long target = (long)Math.ceil(c * percentile);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += buckets.get(i);
+			if(seen >= target) return Duration.ofNanos(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1);
+		}
+		return getMax();
+	}
+	
+	@Override
+	public String toString(){
+		return "count=" + getCount() + ", mean=" + getMean().toMillis() + "ms, p50=" + getPercentile(0.5).toMillis()
+				+ "ms, p99=" + getPercentile(0.99).toMillis() + "ms, max=" + getMax().toMillis() + "ms";
+	}
+	
+}
@@ -0,0 +1,341 @@
+package de.l0c4lh057.templatebot.utils;
+
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+
+/**
+ * The strings of all {@code strings} {@link ResourceBundle}s, compiled once when loading them. Every key of every
+ * bundle (including the keys inherited from parent bundles) is parsed into an immutable {@link Template}, so
+ * formatting neither creates a {@link MessageFormat} nor walks the bundle chain.
+ * <p>
+ * Languages and keys are resolved to dense integer IDs. Callers that format the same key very often can resolve the
+ * IDs once with {@link #getLanguageId(String)} and {@link #getKeyId(String)}, all other callers use
+ * {@link #format(String, String, Object...)} which resolves them on every call.
+ * <p>
+ * Patterns only containing simple arguments like {@code {0}} are formatted exactly like {@link MessageFormat} does,
+ * into a {@link StringBuilder} that is reused per thread. Patterns using format types or styles (like
+ * {@code {0,number,#.#}}) fall back to a new {@link MessageFormat} per call.
+ */
+public class Localization {
+	
+	private Localization(){}
+	
+	// TODO: adjust the capacity up to which the builder is reused
+	private static final int MAX_REUSED_CAPACITY = 4096;
+	
+	/**
+	 * The builder reused by formatting calls on the current thread, null while it is in use
+	 */
+	private static final ThreadLocal<StringBuilder> builder = new ThreadLocal<>();
+	
+	private static volatile Strings strings = new Strings(new ArrayList<>(), new HashMap<>(), new HashMap<>(), new String[0], new Template[0][]);
+	
+	/**
+	 * Loads and compiles the {@code strings} {@link ResourceBundle}s of the passed languages, replacing all previously
+	 * loaded languages.
+	 *
+	 * @param languages The languages to load
+	 */
+	public static void load(@NonNull Collection<String> languages){
+		List<Language> languageList = new ArrayList<>(languages.size());
+		Map<String, Integer> languageIds = new HashMap<>();
+		Map<String, Integer> keyIds = new HashMap<>();
+		List<ResourceBundle> bundles = new ArrayList<>(languages.size());
+		for(String language : languages){
+			if(languageIds.containsKey(language)) continue;
+			Locale locale = Locale.forLanguageTag(language);
+			ResourceBundle bundle = ResourceBundle.getBundle("strings", locale);
+			languageIds.put(language, languageList.size());
+			languageList.add(new Language(locale));
+			bundles.add(bundle);
+			for(String key : bundle.keySet()){
+				keyIds.putIfAbsent(key, keyIds.size());
+			}
+		}
+		String[] keys = new String[keyIds.size()];
+		keyIds.forEach((key, id) -> keys[id] = key);
+		Template[][] templates = new Template[languageList.size()][keys.length];
+		for(int i = 0; i < bundles.size(); i++){
+			ResourceBundle bundle = bundles.get(i);
+			for(String key : bundle.keySet()){
+				templates[i][keyIds.get(key)] = Template.compile(bundle.getString(key));
+			}
+		}
+		strings = new Strings(languageList, languageIds, keyIds, keys, templates);
+	}
+	
+	/**
+	 * @param language The language
+	 * @return The ID of the language or {@code -1} if it is not loaded
+	 */
+	public static int getLanguageId(@NonNull String language){
+		Integer id = strings.languageIds.get(language);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * @param key The key of the string
+	 * @return The ID of the key or {@code -1} if no loaded language contains it
+	 */
+	public static int getKeyId(@NonNull String key){
+		Integer id = strings.keyIds.get(key);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * Gets the string with the provided key in the provided language and formats it with the provided arguments the
+	 * same way {@link MessageFormat#format(Object)} would. If no arguments are passed the string is returned as it is.
+	 *
+	 * @param language The language the returned string should be in
+	 * @param key      The key of the string
+	 * @param args     The arguments used to format the string
+	 * @return The formatted string
+	 * @throws IllegalArgumentException If the language is not loaded
+	 * @throws MissingResourceException If there is no string with the key in the language
+	 */
+	@NonNull
+	public static String format(@NonNull String language, @NonNull String key, @NonNull Object... args){
+		Strings strings = Localization.strings;
+		Integer languageId = strings.languageIds.get(language);
+		if(languageId == null) throw new IllegalArgumentException("The language " + language + " is not loaded");
+		Integer keyId = strings.keyIds.get(key);
+		return format(strings, languageId, keyId == null ? -1 : keyId, key, args);
+	}
+	
+	/**
+	 * Same as {@link #format(String, String, Object...)} but with already resolved IDs.
+	 *
+	 * @param languageId The ID of the language, see {@link #getLanguageId(String)}
+	 * @param keyId      The ID of the key, see {@link #getKeyId(String)}
+	 * @param args       The arguments used to format the string
+	 * @return The formatted string
+	 * @throws IllegalArgumentException If the language is not loaded
+	 * @throws MissingResourceException If there is no string with the key in the language
+	 */
+	@NonNull
+	public static String format(int languageId, int keyId, @NonNull Object... args){
+		Strings strings = Localization.strings;
+		if(languageId < 0 || languageId >= strings.languages.size()) throw new IllegalArgumentException("The language with ID " + languageId + " is not loaded");
+		return format(strings, languageId, keyId, null, args);
+	}
+	
+	@NonNull
+	private static String format(@NonNull Strings strings, int languageId, int keyId, @Nullable String key, @NonNull Object[] args){
+		Template template = strings.getTemplate(languageId, keyId, key);
+		if(args.length == 0) return template.pattern;
+		Language language = strings.languages.get(languageId);
+		if(template.fallback) return new MessageFormat(template.pattern, language.locale).format(args);
+		StringBuilder sb = builder.get();
+		// formatting an argument might format another string on the same thread, which then uses a new builder
+		if(sb == null) sb = new StringBuilder(template.pattern.length() + 16);
+		else builder.set(null);
+		template.formatTo(sb, language, args);
+		String result = sb.toString();
+		sb.setLength(0);
+		if(sb.capacity() <= MAX_REUSED_CAPACITY) builder.set(sb);
+		return result;
+	}
+	
+	/**
+	 * Appends the formatted string to the passed {@link StringBuilder}, for callers joining several strings.
+	 *
+	 * @param sb       The {@link StringBuilder} to append to
+	 * @param language The language the string should be in
+	 * @param key      The key of the string
+	 * @param args     The arguments used to format the string
+	 * @return The passed {@link StringBuilder}
+	 * @see #format(String, String, Object...)
+	 */
+	@NonNull
+	public static StringBuilder formatTo(@NonNull StringBuilder sb, @NonNull String language, @NonNull String key, @NonNull Object... args){
+		Strings strings = Localization.strings;
+		Integer languageId = strings.languageIds.get(language);
+		if(languageId == null) throw new IllegalArgumentException("The language " + language + " is not loaded");
+		Integer keyId = strings.keyIds.get(key);
+		Template template = strings.getTemplate(languageId, keyId == null ? -1 : keyId, key);
+		Language lang = strings.languages.get(languageId);
+		if(args.length == 0) sb.append(template.pattern);
+		else if(template.fallback) sb.append(new MessageFormat(template.pattern, lang.locale).format(args));
+		else template.formatTo(sb, lang, args);
+		return sb;
+	}
+	
+	/**
+	 * An immutable snapshot of all loaded languages and strings
+	 */
+	private static class Strings {
+		@NonNull private final List<Language> languages;
+		@NonNull private final Map<String, Integer> languageIds;
+		@NonNull private final Map<String, Integer> keyIds;
+		/**
+		 * The keys indexed by their ID
+		 */
+		@NonNull private final String[] keys;
+		/**
+		 * The templates indexed by language ID and key ID, null if a language does not contain a key
+		 */
+		@NonNull private final Template[][] templates;
+		
+		private Strings(@NonNull List<Language> languages, @NonNull Map<String, Integer> languageIds, @NonNull Map<String, Integer> keyIds, @NonNull String[] keys, @NonNull Template[][] templates){
+			this.languages = languages;
+			this.languageIds = languageIds;
+			this.keyIds = keyIds;
+			this.keys = keys;
+			this.templates = templates;
+		}
+		
+		@NonNull
+		private Template getTemplate(int languageId, int keyId, @Nullable String key){
+			Template template = keyId < 0 || keyId >= templates[languageId].length ? null : templates[languageId][keyId];
+			if(template == null){
+				String name = key != null ? key : keyId >= 0 && keyId < keys.length ? keys[keyId] : String.valueOf(keyId);
+				throw new MissingResourceException("Can't find resource for bundle strings, key " + name, "strings", name);
+			}
+			return template;
+		}
+	}
+	
+	private static class Language {
+		@NonNull private final Locale locale;
+		/**
+		 * {@link NumberFormat}s are not thread safe, every thread gets its own one
+		 */
+		@NonNull private final ThreadLocal<NumberFormat> numberFormat;
+		/**
+		 * Whether integers between -999 and 999 are formatted like {@link Long#toString(long)}, so they can be appended
+		 * without the {@link NumberFormat}
+		 */
+		private final boolean plainSmallIntegers;
+		
+		private Language(@NonNull Locale locale){
+			this.locale = locale;
+			this.numberFormat = ThreadLocal.withInitial(() -> NumberFormat.getInstance(locale));
+			NumberFormat format = NumberFormat.getInstance(locale);
+			boolean plain = true;
+			for(long value = -999; value <= 999 && plain; value++){
+				plain = format.format(value).equals(Long.toString(value));
+			}
+			this.plainSmallIntegers = plain;
+		}
+		
+		private void appendNumber(@NonNull StringBuilder sb, @NonNull Number number){
+			if(plainSmallIntegers && (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte)){
+				long value = number.longValue();
+				if(value >= -999 && value <= 999){
+					sb.append(value);
+					return;
+				}
+			}
+			sb.append(numberFormat.get().format(number));
+		}
+	}
+	
+	/**
+	 * A compiled pattern. The literal parts have the quotes already resolved, {@code literals[i]} is followed by the
+	 * argument with the index {@code arguments[i]}, the last literal is not followed by any argument.
+	 */
+	private static class Template {
+		/**
+		 * The uncompiled pattern, returned as it is if there are no arguments
+		 */
+		@NonNull private final String pattern;
+		@NonNull private final String[] literals;
+		@NonNull private final int[] arguments;
+		/**
+		 * Whether the pattern uses anything apart from simple arguments and has to be formatted by {@link MessageFormat}
+		 */
+		private final boolean fallback;
+		
+		private Template(@NonNull String pattern, @NonNull String[] literals, @NonNull int[] arguments, boolean fallback){
+			this.pattern = pattern;
+			this.literals = literals;
+			this.arguments = arguments;
+			this.fallback = fallback;
+		}
+		
+		/**
+		 * Parses the pattern following the quoting rules of {@link MessageFormat}: two single quotes are one single
+		 * quote, everything else between single quotes is literal text.
+		 */
+		@NonNull
+		private static Template compile(@NonNull String pattern){
+			List<String> literals = new ArrayList<>();
+			List<Integer> arguments = new ArrayList<>();
+			StringBuilder literal = new StringBuilder(pattern.length());
+			boolean quoted = false;
+			for(int i = 0; i < pattern.length(); i++){
+				char c = pattern.charAt(i);
+				if(c == '\''){
+					if(i + 1 < pattern.length() && pattern.charAt(i + 1) == '\''){
+						literal.append('\'');
+						i++;
+					}else{
+						quoted = !quoted;
+					}
+				}else if(c == '{' && !quoted){
+					int end = pattern.indexOf('}', i + 1);
+					int index = end == -1 ? -1 : parseIndex(pattern, i + 1, end);
+					if(index == -1) return new Template(pattern, new String[0], new int[0], true);
+					literals.add(literal.toString());
+					arguments.add(index);
+					literal.setLength(0);
+					i = end;
+				}else if(c == '}' && !quoted){
+					// MessageFormat accepts unmatched closing braces as literal text, leave anything unusual to it
+					return new Template(pattern, new String[0], new int[0], true);
+				}else{
+					literal.append(c);
+				}
+			}
+			literals.add(literal.toString());
+			return new Template(pattern, literals.toArray(new String[0]), arguments.stream().mapToInt(Integer::intValue).toArray(), false);
+		}
+		
+		/**
+		 * @return The argument index or {@code -1} if the argument is not a simple one
+		 */
+		private static int parseIndex(@NonNull String pattern, int start, int end){
+			if(start == end || end - start > 9) return -1;
+			int index = 0;
+			for(int i = start; i < end; i++){
+				char c = pattern.charAt(i);
+				if(c < '0' || c > '9') return -1;
+				index = index * 10 + (c - '0');
+			}
+			return index;
+		}
+		
+		private void formatTo(@NonNull StringBuilder sb, @NonNull Language language, @NonNull Object[] args){
+			for(int i = 0; i < arguments.length; i++){
+				sb.append(literals[i]);
+				int index = arguments[i];
+				if(index >= args.length){
+					// same as MessageFormat: missing arguments are kept as placeholder
+					sb.append('{').append(index).append('}');
+					continue;
+				}
+				Object arg = args[index];
+				if(arg == null) sb.append("null");
+				else if(arg instanceof String) sb.append((String)arg);
+				else if(arg instanceof Number) language.appendNumber(sb, (Number)arg);
+				else if(arg instanceof Date) sb.append(DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, language.locale).format(arg));
+				else sb.append(arg);
+			}
+			sb.append(literals[literals.length - 1]);
+		}
+	}
+	
+}
@@ -0,0 +1,229 @@
+package de.l0c4lh057.templatebot.utils;
+
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hash map with primitive {@code long} keys using open addressing with linear probing. Compared to a
+ * {@code Map<Long, V>} it needs neither boxed keys nor entry objects.
+ * <p>
+ * Reads never block and can happen concurrently to writes. Writes are synchronized on the map, so they only contend
+ * with writes to the same map. A key is never moved inside a table, removing a key only clears its value, and resizing
+ * publishes a completely new table, so a reader always sees a consistent probe sequence.
+ * <p>
+ * The key {@code 0} is reserved to mark empty slots and can not be used.
+ *
+ * @param <V> The type of the values
+ */
+public class LongObjectMap<V> {
+	
+	private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+	private static final int MIN_CAPACITY = 4;
+	
+	private static class Table {
+		private final long[] keys;
+		private final Object[] values;
+		private final int mask;
+		private Table(int capacity){
+			this.keys = new long[capacity];
+			this.values = new Object[capacity];
+			this.mask = capacity - 1;
+		}
+	}
+	
+	private volatile Table table;
+	private volatile int size = 0;
+	/**
+	 * The amount of slots with a key, including removed ones. Only accessed while holding the lock.
+	 */
+	private int usedSlots = 0;
+	
+	public LongObjectMap(){
+		this(MIN_CAPACITY);
+	}
+	
+	/**
+	 * @param expectedSize The amount of entries this map should be able to hold without resizing
+	 */
+	public LongObjectMap(int expectedSize){
+		this.table = new Table(capacityFor(expectedSize));
+	}
+	
+	private static int capacityFor(int size){
+		// keep the load factor at or below 0.75
+		int capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, size + (size / 3) + 1) - 1) << 1;
+		return Math.max(MIN_CAPACITY, capacity);
+	}
+	
+	private static int indexFor(long key, int mask){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+	
+	/**
+	 * @param key The key
+	 * @return The value stored for the key or {@code null} if there is none
+	 */
+	@Nullable
+	@SuppressWarnings("unchecked")
+	public V get(long key){
+		Table t = table;
+		int i = indexFor(key, t.mask);
+		while(true){
+			long k = (long)KEYS.getAcquire(t.keys, i);
+			if(k == key) return (V)VALUES.getAcquire(t.values, i);
+			if(k == 0) return null;
+			i = (i + 1) & t.mask;
+		}
+	}
+	
+	/**
+	 * @param key The key
+	 * @return Whether there is a value stored for the key
+	 */
+	public boolean containsKey(long key){
+		return get(key) != null;
+	}
+	
+	/**
+	 * @param key   The key, must not be {@code 0}
+	 * @param value The value
+	 * @return The value previously stored for the key or {@code null} if there was none
+	 */
+	@Nullable
+	@SuppressWarnings("unchecked")
+	public synchronized V put(long key, @NonNull V value){
+		if(key == 0) throw new IllegalArgumentException("The key 0 is reserved");
+		Table t = table;
+		int i = indexFor(key, t.mask);
+		while(true){
+			long k = t.keys[i];
+			if(k == key){
+				V previous = (V)t.values[i];
+				VALUES.setRelease(t.values, i, value);
+				if(previous == null) size++;
+				return previous;
+			}
+			if(k == 0) break;
+			i = (i + 1) & t.mask;
+		}
+		if(usedSlots + 1 > (t.keys.length >> 2) * 3){
+			t = rehash(size + 1);
+			i = indexFor(key, t.mask);
+			while(t.keys[i] != 0) i = (i + 1) & t.mask;
+		}
+		// the value is visible before the key, so readers finding the key also find the value
+		VALUES.setRelease(t.values, i, value);
+		KEYS.setRelease(t.keys, i, key);
+		usedSlots++;
+		size++;
+		return null;
+	}
+	
+	/**
+	 * @param key The key
+	 * @return The removed value or {@code null} if there was none
+	 */
+	@Nullable
+	@SuppressWarnings("unchecked")
+	public synchronized V remove(long key){
+		Table t = table;
+		int i = indexFor(key, t.mask);
+		while(true){
+			long k = t.keys[i];
+			if(k == key){
+				V previous = (V)t.values[i];
+				if(previous != null){
+					VALUES.setRelease(t.values, i, null);
+					size--;
+				}
+				return previous;
+			}
+			if(k == 0) return null;
+			i = (i + 1) & t.mask;
+		}
+	}
+	
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear(){
+		table = new Table(MIN_CAPACITY);
+		usedSlots = 0;
+		size = 0;
+	}
+	
+	/**
+	 * Resizes the map so that it can hold at least the provided amount of entries without resizing again.
+	 *
+	 * @param expectedSize The amount of entries
+	 */
+	public synchronized void ensureCapacity(int expectedSize){
+		if(capacityFor(expectedSize) > table.keys.length) rehash(expectedSize);
+	}
+	
+	@NonNull
+	private Table rehash(int expectedSize){
+		Table old = table;
+		Table t = new Table(capacityFor(Math.max(expectedSize, size)));
+		int used = 0;
+		for(int j = 0; j < old.keys.length; j++){
+			Object value = old.values[j];
+			if(value == null) continue;
+			int i = indexFor(old.keys[j], t.mask);
+			while(t.keys[i] != 0) i = (i + 1) & t.mask;
+			t.keys[i] = old.keys[j];
+			t.values[i] = value;
+			used++;
+		}
+		usedSlots = used;
+		table = t;
+		return t;
+	}
+	
+	/**
+	 * @return The amount of entries in this map
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * @return Whether this map does not contain any entries
+	 */
+	public boolean isEmpty(){
+		return size == 0;
+	}
+	
+	/**
+	 * Calls the consumer for every value in this map. Values put or removed while iterating might or might not be seen.
+	 *
+	 * @param consumer The consumer for the values
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachValue(@NonNull Consumer<? super V> consumer){
+		Table t = table;
+		for(int i = 0; i < t.values.length; i++){
+			Object value = VALUES.getAcquire(t.values, i);
+			if(value != null) consumer.accept((V)value);
+		}
+	}
+	
+	/**
+	 * @return A snapshot of all values in this map
+	 */
+	@NonNull
+	public List<V> values(){
+		List<V> values = new ArrayList<>(size);
+		forEachValue(values::add);
+		return values;
+	}
+	
+}
@@ -0,0 +1,141 @@
+package de.l0c4lh057.templatebot.utils.ratelimits;
+
+import de.l0c4lh057.templatebot.utils.LongObjectMap;
+import discord4j.common.util.Snowflake;
+import io.github.bucket4j.Bandwidth;
+import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global pressure detector for command messages. It is only charged once a message is known to start with the prefix
+ * and name of an existing command, so normal chat never counts against it. It runs before argument parsing, member
+ * caching and permission checks, so users and channels flooding commands get dropped as cheaply as possible instead
+ * of running through all checks of a command until its {@link Ratelimit} rejects them.
+ * <p>
+ * Both limits are independent of the command ratelimits and should be set high enough to never affect normal usage.
+ * A dropped user or channel gets at most one reply per {@link #REPLY_COOLDOWN}, all further messages are dropped
+ * silently.
+ */
+public class AbuseShield {
+	
+	private AbuseShield(){}
+	
+	// TODO: adjust limits and reply cooldown
+	private static final Bandwidth USER_LIMIT = Bandwidth.simple(8, Duration.ofSeconds(10));
+	private static final Bandwidth CHANNEL_LIMIT = Bandwidth.simple(30, Duration.ofSeconds(10));
+	private static final Duration REPLY_COOLDOWN = Duration.ofSeconds(30);
+	
+	private static final GcraStore users = new GcraStore(USER_LIMIT);
+	private static final GcraStore channels = new GcraStore(CHANNEL_LIMIT);
+	/**
+	 * Allows one reply per cooldown, keyed by {@code (userId, 0)} for users and {@code (channelId, 1)} for channels
+	 */
+	private static final GcraStore replies = new GcraStore(Bandwidth.simple(1, REPLY_COOLDOWN));
+	
+	private static final LongObjectMap<GuildDrops> guildDrops = new LongObjectMap<>();
+	private static final LongAdder privateDrops = new LongAdder();
+	
+	/**
+	 * The result of {@link #check(Snowflake, Snowflake, Snowflake)}
+	 */
+	public enum Verdict {
+		/**
+		 * The message should get handled normally
+		 */
+		ALLOW,
+		/**
+		 * The message should get dropped silently
+		 */
+		DROP,
+		/**
+		 * The message should get dropped, the user has to be told that they are sending commands too fast
+		 */
+		DROP_AND_REPLY_USER,
+		/**
+		 * The message should get dropped, the channel has to be told that too many commands are sent in it
+		 */
+		DROP_AND_REPLY_CHANNEL;
+		
+		public boolean isAllowed(){ return this == ALLOW; }
+	}
+	
+	/**
+	 * Records a command message and decides whether the command should get executed.
+	 *
+	 * @param guildId   The ID of the guild the message got sent in or null if it got sent in DMs
+	 * @param channelId The ID of the channel the message got sent in
+	 * @param userId    The ID of the author of the message
+	 * @return The {@link Verdict} for this message
+	 */
+	@NonNull
+	public static Verdict check(@Nullable Snowflake guildId, @NonNull Snowflake channelId, @NonNull Snowflake userId){
+		if(!users.tryConsume(userId.asLong(), 0)){
+			recordDrop(guildId);
+			return replies.tryConsume(userId.asLong(), 0) ? Verdict.DROP_AND_REPLY_USER : Verdict.DROP;
+		}
+		if(!channels.tryConsume(channelId.asLong(), 0)){
+			recordDrop(guildId);
+			return replies.tryConsume(channelId.asLong(), 1) ? Verdict.DROP_AND_REPLY_CHANNEL : Verdict.DROP;
+		}
+		return Verdict.ALLOW;
+	}
+	
+	private static void recordDrop(@Nullable Snowflake guildId){
+		if(guildId == null){
+			privateDrops.increment();
+			return;
+		}
+		GuildDrops drops = guildDrops.get(guildId.asLong());
+		if(drops == null){
+			synchronized(guildDrops){
+				drops = guildDrops.get(guildId.asLong());
+				if(drops == null){
+					drops = new GuildDrops(guildId);
+					guildDrops.put(guildId.asLong(), drops);
+				}
+			}
+		}
+		drops.count.increment();
+	}
+	
+	/**
+	 * @param guildId The ID of the guild
+	 * @return The number of messages in the guild that got dropped
+	 */
+	public static long getDropCount(@NonNull Snowflake guildId){
+		GuildDrops drops = guildDrops.get(guildId.asLong());
+		return drops == null ? 0 : drops.count.sum();
+	}
+	
+	/**
+	 * @return The number of dropped messages per guild, only containing guilds with at least one dropped message
+	 */
+	@NonNull
+	public static Map<Snowflake, Long> getDropCounts(){
+		Map<Snowflake, Long> counts = new HashMap<>();
+		guildDrops.forEachValue(drops -> counts.put(drops.guildId, drops.count.sum()));
+		return counts;
+	}
+	
+	/**
+	 * @return The number of messages in DMs that got dropped
+	 */
+	public static long getPrivateDropCount(){
+		return privateDrops.sum();
+	}
+	
+	private static class GuildDrops {
+		@NonNull private final Snowflake guildId;
+		private final LongAdder count = new LongAdder();
+		
+		private GuildDrops(@NonNull Snowflake guildId){
+			this.guildId = guildId;
+		}
+	}
+	
+}
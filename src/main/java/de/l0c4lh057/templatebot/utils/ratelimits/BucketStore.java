@@ -0,0 +1,143 @@
+package de.l0c4lh057.templatebot.utils.ratelimits;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.Bucket4j;
+import io.github.bucket4j.local.LocalBucketBuilder;
+import reactor.util.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thread-safe store of the {@link Bucket}s of one {@link Ratelimit}. Buckets are identified by one or two IDs and
+ * spread over multiple shards by the hash of their key, every shard has its own lock.
+ * <p>
+ * A bucket that has not been used for as long as the slowest of its bandwidths needs to refill completely is full
+ * again, so it is equal to a new bucket and gets removed. Every shard sweeps its buckets at most once per refill window
+ * while being accessed anyway, so there is no need for a background task.
+ */
+class BucketStore implements RatelimitStore {
+	
+	// TODO: adjust amount of shards (has to be a power of two)
+	private static final int SHARDS = 16;
+	
+	@NonNull private final List<Bandwidth> bandwidths;
+	private final long idleNanos;
+	@NonNull private final Shard[] shards = new Shard[SHARDS];
+	
+	/**
+	 * @param bandwidths The bandwidths of the created buckets
+	 */
+	BucketStore(@NonNull List<Bandwidth> bandwidths){
+		this.bandwidths = bandwidths;
+		this.idleNanos = getRefillNanos(bandwidths);
+		for(int i = 0; i < SHARDS; i++){
+			shards[i] = new Shard();
+		}
+	}
+	
+	/**
+	 * @param bandwidths The bandwidths of a bucket
+	 * @return The time an empty bucket with these bandwidths needs to refill completely
+	 */
+	private static long getRefillNanos(@NonNull List<Bandwidth> bandwidths){
+		long refillNanos = 0;
+		for(Bandwidth bandwidth : bandwidths){
+			long refills = (bandwidth.getCapacity() + bandwidth.getRefillTokens() - 1) / bandwidth.getRefillTokens();
+			refillNanos = Math.max(refillNanos, refills * bandwidth.getRefillPeriodNanos());
+		}
+		return refillNanos;
+	}
+	
+	@NonNull
+	private Bucket newBucket(){
+		LocalBucketBuilder builder = Bucket4j.builder();
+		bandwidths.forEach(builder::addLimit);
+		return builder.build();
+	}
+	
+	/**
+	 * Tries to consume a token from the bucket with the specified key, creating the bucket if it does not exist.
+	 */
+	@Override
+	public boolean tryConsume(long id1, long id2){
+		Shard shard = shards[shardIndex(id1, id2)];
+		long now = System.nanoTime();
+		synchronized(shard){
+			if(now - shard.lastSweep >= idleNanos){
+				shard.sweep(now, idleNanos);
+			}
+			Entry entry = shard.buckets.computeIfAbsent(new Key(id1, id2), key -> new Entry(newBucket()));
+			entry.lastAccess = now;
+			return entry.bucket.tryConsume(1);
+		}
+	}
+	
+	/**
+	 * @return The number of buckets currently stored, including buckets that are full already but not removed yet
+	 */
+	@Override
+	public int size(){
+		int size = 0;
+		for(Shard shard : shards){
+			synchronized(shard){
+				size += shard.buckets.size();
+			}
+		}
+		return size;
+	}
+	
+	private static int shardIndex(long id1, long id2){
+		// the lower bits of snowflakes are mostly zero, mix all bits into the index
+		long hash = (id1 * 31 + id2) * 0x9E3779B97F4A7C15L;
+		return (int)(hash >>> 32) & (SHARDS - 1);
+	}
+	
+	private static class Shard {
+		private final Map<Key, Entry> buckets = new HashMap<>();
+		private long lastSweep = System.nanoTime();
+		
+		private void sweep(long now, long idleNanos){
+			Iterator<Entry> iterator = buckets.values().iterator();
+			while(iterator.hasNext()){
+				if(now - iterator.next().lastAccess >= idleNanos) iterator.remove();
+			}
+			lastSweep = now;
+		}
+	}
+	
+	private static class Entry {
+		@NonNull private final Bucket bucket;
+		private long lastAccess;
+		private Entry(@NonNull Bucket bucket){
+			this.bucket = bucket;
+		}
+	}
+	
+	/**
+	 * The key of a ratelimited entity, see {@link RatelimitStore}
+	 */
+	static class Key {
+		private final long id1;
+		private final long id2;
+		Key(long id1, long id2){
+			this.id1 = id1;
+			this.id2 = id2;
+		}
+		@Override
+		public boolean equals(Object o){
+			if(this == o) return true;
+			if(!(o instanceof Key)) return false;
+			Key key = (Key)o;
+			return id1 == key.id1 && id2 == key.id2;
+		}
+		@Override
+		public int hashCode(){
+			return Long.hashCode(id1 * 31 + id2);
+		}
+	}
+	
+}
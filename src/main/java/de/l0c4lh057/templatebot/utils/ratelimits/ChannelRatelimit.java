@@ -1,22 +1,15 @@
 package de.l0c4lh057.templatebot.utils.ratelimits;
 
 import discord4j.common.util.Snowflake;
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public class ChannelRatelimit extends Ratelimit {
-	private final Map<Long, Bucket> buckets = new HashMap<>();
-	ChannelRatelimit(@NonNull List<Bandwidth> bandwidths){
-		this.bandwidths = bandwidths;
+	ChannelRatelimit(@NonNull RatelimitStore store){
+		super(store);
 	}
 	@Override
 	public boolean isRatelimited(@Nullable Snowflake guildId, @NonNull Snowflake channelId, @NonNull Snowflake userId) {
-		return isRatelimited(buckets, channelId);
+		return isRatelimited(channelId);
 	}
 }
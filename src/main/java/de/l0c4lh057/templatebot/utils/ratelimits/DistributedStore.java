@@ -0,0 +1,183 @@
+package de.l0c4lh057.templatebot.utils.ratelimits;
+
+import de.l0c4lh057.templatebot.data.DataHandler;
+import io.github.bucket4j.Bandwidth;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.util.annotation.NonNull;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RatelimitStore} shared by all processes that use the same database. The state of every key is kept in the
+ * database (see {@link DataHandler#leaseRatelimitTokens(String, long, long, long, long, long)}), processes lease a
+ * part of the capacity at once and consume it locally, so only refilling a lease needs a query.
+ * <p>
+ * Leases are refilled asynchronously. To not make the first usage of every key wait for the database, one usage may
+ * be granted on credit while the lease is refilled. Credit is not given anymore once the database granted fewer
+ * tokens than requested, so a key that reached the shared limit only gets the tokens the database grants.
+ * <p>
+ * If the database can not be reached the store falls back to a {@link GcraStore} limiting every process on its own
+ * for {@link #FALLBACK_DURATION}.
+ */
+class DistributedStore implements RatelimitStore {
+	
+	private static final Logger logger = LogManager.getLogger("DistributedRatelimit");
+	
+	// TODO: adjust amount of shards (has to be a power of two), lease size and durations
+	private static final int SHARDS = 16;
+	/**
+	 * The part of the capacity that gets leased at once
+	 */
+	private static final int LEASE_DIVISOR = 4;
+	private static final Duration FALLBACK_DURATION = Duration.ofSeconds(30);
+	private static final Duration CLEANUP_INTERVAL = Duration.ofMinutes(10);
+	
+	private static final AtomicLong nextCleanup = new AtomicLong(System.nanoTime() + CLEANUP_INTERVAL.toNanos());
+	
+	@NonNull private final String name;
+	private final long emissionNanos;
+	private final long emissionMicros;
+	private final long toleranceMicros;
+	/**
+	 * The number of tokens requested per refill, including one token to pay back a usage granted on credit
+	 */
+	private final long requestSize;
+	/**
+	 * How long leased tokens can be used, the time an empty bucket needs to refill completely
+	 */
+	private final long leaseNanos;
+	@NonNull private final GcraStore fallback;
+	private volatile long fallbackUntil = System.nanoTime();
+	@NonNull private final Shard[] shards = new Shard[SHARDS];
+	
+	/**
+	 * @param name      The name identifying this ratelimit in all processes
+	 * @param bandwidth The only bandwidth of the ratelimit
+	 */
+	DistributedStore(@NonNull String name, @NonNull Bandwidth bandwidth){
+		this.name = name;
+		this.emissionNanos = Math.max(1000, bandwidth.getRefillPeriodNanos() / bandwidth.getRefillTokens());
+		this.emissionMicros = emissionNanos / 1000;
+		this.toleranceMicros = emissionMicros * (bandwidth.getCapacity() - 1);
+		this.requestSize = Math.min(bandwidth.getCapacity(), Math.max(1, bandwidth.getCapacity() / LEASE_DIVISOR) + 1);
+		this.leaseNanos = emissionNanos * bandwidth.getCapacity();
+		this.fallback = new GcraStore(bandwidth);
+		for(int i = 0; i < SHARDS; i++){
+			shards[i] = new Shard();
+		}
+	}
+	
+	@Override
+	public boolean tryConsume(long id1, long id2){
+		long now = System.nanoTime();
+		cleanup(now);
+		if(now - fallbackUntil < 0) return fallback.tryConsume(id1, id2);
+		long hash = (id1 * 31 + id2) * 0x9E3779B97F4A7C15L;
+		Shard shard = shards[(int)(hash >>> 32) & (SHARDS - 1)];
+		synchronized(shard){
+			if(now - shard.lastSweep >= leaseNanos) shard.sweep(now, leaseNanos);
+			Lease lease = shard.leases.computeIfAbsent(new BucketStore.Key(id1, id2), key -> new Lease());
+			lease.lastAccess = now;
+			// unused tokens of an old lease are dropped, a debt is kept until it is paid back
+			if(lease.tokens > 0 && now - lease.expiresAt >= 0) lease.tokens = 0;
+			boolean allowed;
+			if(lease.tokens > 0){
+				lease.tokens--;
+				allowed = true;
+			}else if(lease.tokens == 0 && !lease.exhausted){
+				lease.tokens = -1;
+				allowed = true;
+			}else{
+				allowed = false;
+			}
+			if(lease.tokens <= 0 && !lease.refilling && now - lease.nextRefill >= 0){
+				lease.refilling = true;
+				refill(shard, lease, id1, id2);
+			}
+			return allowed;
+		}
+	}
+	
+	private void refill(@NonNull Shard shard, @NonNull Lease lease, long id1, long id2){
+		DataHandler.leaseRatelimitTokens(name, id1, id2, requestSize, emissionMicros, toleranceMicros)
+				.defaultIfEmpty(0L)
+				.subscribe(granted -> {
+					long now = System.nanoTime();
+					synchronized(shard){
+						lease.tokens += granted;
+						lease.expiresAt = now + leaseNanos;
+						lease.exhausted = granted < requestSize;
+						// don't query the database again before the next token could be available
+						if(lease.exhausted) lease.nextRefill = now + emissionNanos;
+						lease.refilling = false;
+					}
+				}, err -> {
+					long now = System.nanoTime();
+					if(now - fallbackUntil >= 0) logger.warn("Could not lease tokens of ratelimit {}, limiting locally for {}s", name, FALLBACK_DURATION.toSeconds(), err);
+					fallbackUntil = now + FALLBACK_DURATION.toNanos();
+					synchronized(shard){
+						lease.refilling = false;
+					}
+				});
+	}
+	
+	/**
+	 * Deletes the expired entries of all distributed ratelimits from the database, at most once per
+	 * {@link #CLEANUP_INTERVAL} in this process.
+	 */
+	private static void cleanup(long now){
+		long next = nextCleanup.get();
+		if(now - next < 0 || !nextCleanup.compareAndSet(next, now + CLEANUP_INTERVAL.toNanos())) return;
+		DataHandler.deleteExpiredRatelimits()
+				.subscribe(
+						deleted -> logger.debug("Deleted {} expired ratelimit entries", deleted),
+						err -> logger.warn("Could not delete expired ratelimit entries", err)
+				);
+	}
+	
+	@Override
+	public int size(){
+		int size = fallback.size();
+		for(Shard shard : shards){
+			synchronized(shard){
+				size += shard.leases.size();
+			}
+		}
+		return size;
+	}
+	
+	private static class Shard {
+		private final Map<BucketStore.Key, Lease> leases = new HashMap<>();
+		private long lastSweep = System.nanoTime();
+		
+		private void sweep(long now, long leaseNanos){
+			Iterator<Lease> iterator = leases.values().iterator();
+			while(iterator.hasNext()){
+				Lease lease = iterator.next();
+				if(!lease.refilling && now - lease.lastAccess >= leaseNanos) iterator.remove();
+			}
+			lastSweep = now;
+		}
+	}
+	
+	private static class Lease {
+		/**
+		 * The leased tokens that are not used yet, {@code -1} if a usage got granted on credit
+		 */
+		private long tokens = 0;
+		private long expiresAt;
+		private long lastAccess;
+		private long nextRefill = System.nanoTime();
+		private boolean refilling = false;
+		/**
+		 * Whether the last refill got fewer tokens than requested
+		 */
+		private boolean exhausted = false;
+	}
+	
+}
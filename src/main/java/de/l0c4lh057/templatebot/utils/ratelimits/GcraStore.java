@@ -0,0 +1,150 @@
+package de.l0c4lh057.templatebot.utils.ratelimits;
+
+import io.github.bucket4j.Bandwidth;
+import reactor.util.annotation.NonNull;
+
+/**
+ * {@link RatelimitStore} implementing the generic cell rate algorithm. Every key only stores its theoretical arrival
+ * time (TAT): the time at which its bucket would be full again. A usage is allowed if the TAT is at most the burst
+ * tolerance ahead of now, and moves the TAT forward by the emission interval of one token.
+ * <p>
+ * Keys are kept in open addressing tables of primitive arrays, split into shards with their own lock. A key whose TAT
+ * lies in the past has a full bucket and is equal to a key that does not exist, so those keys get dropped whenever a
+ * shard gets rehashed, which happens at least once per refill window of an accessed shard.
+ */
+class GcraStore implements RatelimitStore {
+	
+	// TODO: adjust amount of shards (has to be a power of two) and initial capacity
+	private static final int SHARDS = 16;
+	private static final int INITIAL_CAPACITY = 64;
+	
+	/**
+	 * The time between two tokens getting added
+	 */
+	private final long emissionNanos;
+	/**
+	 * How far the TAT may be ahead of now, the burst of {@code capacity} usages
+	 */
+	private final long toleranceNanos;
+	@NonNull private final Shard[] shards = new Shard[SHARDS];
+	
+	/**
+	 * @param bandwidth The only bandwidth of the ratelimit
+	 */
+	GcraStore(@NonNull Bandwidth bandwidth){
+		this.emissionNanos = Math.max(1, bandwidth.getRefillPeriodNanos() / bandwidth.getRefillTokens());
+		this.toleranceNanos = emissionNanos * (bandwidth.getCapacity() - 1);
+		long refillNanos = toleranceNanos + emissionNanos;
+		for(int i = 0; i < SHARDS; i++){
+			shards[i] = new Shard(refillNanos);
+		}
+	}
+	
+	@Override
+	public boolean tryConsume(long id1, long id2){
+		long hash = hash(id1, id2);
+		Shard shard = shards[(int)(hash >>> 32) & (SHARDS - 1)];
+		long now = System.nanoTime();
+		synchronized(shard){
+			if(now - shard.lastSweep >= shard.refillNanos) shard.rehash(shard.ids1.length, now);
+			int index = shard.find(id1, id2, (int)hash);
+			long tat;
+			if(index < 0){
+				tat = now;
+			}else{
+				tat = shard.tats[index];
+				if(tat - now < 0) tat = now;
+			}
+			if(tat - now > toleranceNanos) return false;
+			if(index < 0) shard.insert(id1, id2, (int)hash, tat + emissionNanos, now);
+			else shard.tats[index] = tat + emissionNanos;
+			return true;
+		}
+	}
+	
+	private static long hash(long id1, long id2){
+		// the lower bits of snowflakes are mostly zero, mix the upper bits into the lower ones used for the slot index
+		long hash = (id1 * 31 + id2) * 0x9E3779B97F4A7C15L;
+		return hash ^ (hash >>> 29);
+	}
+	
+	@Override
+	public int size(){
+		int size = 0;
+		for(Shard shard : shards){
+			synchronized(shard){
+				size += shard.size;
+			}
+		}
+		return size;
+	}
+	
+	private static class Shard {
+		private final long refillNanos;
+		// the key (0, 0) marks empty slots
+		private long[] ids1 = new long[INITIAL_CAPACITY];
+		private long[] ids2 = new long[INITIAL_CAPACITY];
+		private long[] tats = new long[INITIAL_CAPACITY];
+		private int size = 0;
+		private long lastSweep = System.nanoTime();
+		
+		private Shard(long refillNanos){
+			this.refillNanos = refillNanos;
+		}
+		
+		/**
+		 * @return The index of the key or -1 if it is not in this shard
+		 */
+		private int find(long id1, long id2, int hash){
+			int mask = ids1.length - 1;
+			for(int i = hash & mask; ; i = (i + 1) & mask){
+				if(ids1[i] == id1 && ids2[i] == id2) return i;
+				if(ids1[i] == 0 && ids2[i] == 0) return -1;
+			}
+		}
+		
+		private void insert(long id1, long id2, int hash, long tat, long now){
+			if((size + 1) * 2 > ids1.length){
+				// drop expired keys first and only grow if that does not free enough space
+				rehash(ids1.length, now);
+				if((size + 1) * 2 > ids1.length) rehash(ids1.length * 2, now);
+			}
+			int mask = ids1.length - 1;
+			int i = hash & mask;
+			while(ids1[i] != 0 || ids2[i] != 0){
+				i = (i + 1) & mask;
+			}
+			ids1[i] = id1;
+			ids2[i] = id2;
+			tats[i] = tat;
+			size++;
+		}
+		
+		/**
+		 * Moves all keys whose TAT lies in the future into new tables of the specified capacity.
+		 */
+		private void rehash(int capacity, long now){
+			long[] oldIds1 = ids1;
+			long[] oldIds2 = ids2;
+			long[] oldTats = tats;
+			ids1 = new long[capacity];
+			ids2 = new long[capacity];
+			tats = new long[capacity];
+			size = 0;
+			int mask = capacity - 1;
+			for(int j = 0; j < oldIds1.length; j++){
+				if((oldIds1[j] == 0 && oldIds2[j] == 0) || oldTats[j] - now <= 0) continue;
+				int i = (int)hash(oldIds1[j], oldIds2[j]) & mask;
+				while(ids1[i] != 0 || ids2[i] != 0){
+					i = (i + 1) & mask;
+				}
+				ids1[i] = oldIds1[j];
+				ids2[i] = oldIds2[j];
+				tats[i] = oldTats[j];
+				size++;
+			}
+			lastSweep = now;
+		}
+	}
+	
+}
@@ -1,24 +1,17 @@
 package de.l0c4lh057.templatebot.utils.ratelimits;
 
 import discord4j.common.util.Snowflake;
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public class GuildRatelimit extends Ratelimit {
-	private final Map<Long, Bucket> buckets = new HashMap<>();
-	private final Map<Long, Bucket> noGuildBuckets = new HashMap<>();
-	GuildRatelimit(@NonNull List<Bandwidth> bandwidths){
-		this.bandwidths = bandwidths;
+	GuildRatelimit(@NonNull RatelimitStore store){
+		super(store);
 	}
 	@Override
 	public boolean isRatelimited(@Nullable Snowflake guildId, @NonNull Snowflake channelId, @NonNull Snowflake userId) {
-		if(guildId == null) return isRatelimited(noGuildBuckets, userId);
-		return isRatelimited(buckets, guildId);
+		// buckets of DMs are keyed by the user, the first ID 0 keeps them apart from the guild buckets
+		if(guildId == null) return isRatelimited(0, userId.asLong());
+		return isRatelimited(guildId);
 	}
 }
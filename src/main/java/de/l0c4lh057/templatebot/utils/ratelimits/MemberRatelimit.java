@@ -1,24 +1,17 @@
 package de.l0c4lh057.templatebot.utils.ratelimits;
 
 import discord4j.common.util.Snowflake;
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public class MemberRatelimit extends Ratelimit {
-	private Map<Long, Map<Long, Bucket>> buckets = new HashMap<>();
-	private Map<Long, Bucket> noGuildBuckets = new HashMap<>();
-	MemberRatelimit(@NonNull List<Bandwidth> bandwidths){
-		this.bandwidths = bandwidths;
+	MemberRatelimit(@NonNull RatelimitStore store){
+		super(store);
 	}
 	@Override
 	public boolean isRatelimited(@Nullable Snowflake guildId, @NonNull Snowflake channelId, @NonNull Snowflake userId) {
-		if(guildId == null) return isRatelimited(noGuildBuckets, userId);
-		return isRatelimited(buckets, guildId, userId);
+		// DMs have no guild, the first ID 0 keeps them apart from the member buckets
+		if(guildId == null) return isRatelimited(0, userId.asLong());
+		return isRatelimited(guildId, userId);
 	}
 }
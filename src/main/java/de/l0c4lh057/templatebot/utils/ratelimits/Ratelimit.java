@@ -1,29 +1,31 @@
 package de.l0c4lh057.templatebot.utils.ratelimits;
 
 import discord4j.common.util.Snowflake;
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
-import io.github.bucket4j.Bucket4j;
-import io.github.bucket4j.local.LocalBucketBuilder;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public abstract class Ratelimit {
-	protected List<Bandwidth> bandwidths;
-	protected Bucket newBucket(){
-		LocalBucketBuilder builder = Bucket4j.builder();
-		bandwidths.forEach(builder::addLimit);
-		return builder.build();
+	@Nullable private final RatelimitStore store;
+	Ratelimit(){
+		this.store = null;
+	}
+	Ratelimit(@NonNull RatelimitStore store){
+		this.store = store;
 	}
 	public abstract boolean isRatelimited(@Nullable Snowflake guildId, @NonNull Snowflake channelId, @NonNull Snowflake userId);
-	protected boolean isRatelimited(@NonNull Map<Long, Bucket> buckets, @NonNull Snowflake id){
-		return !buckets.computeIfAbsent(id.asLong(), k -> newBucket()).tryConsume(1);
+	protected boolean isRatelimited(@NonNull Snowflake id){
+		return isRatelimited(id.asLong(), 0);
+	}
+	protected boolean isRatelimited(@NonNull Snowflake id1, @NonNull Snowflake id2){
+		return isRatelimited(id1.asLong(), id2.asLong());
+	}
+	protected boolean isRatelimited(long id1, long id2){
+		return store != null && !store.tryConsume(id1, id2);
 	}
-	protected boolean isRatelimited(@NonNull Map<Long, Map<Long, Bucket>> buckets, @NonNull Snowflake id1, @NonNull Snowflake id2){
-		return isRatelimited(buckets.computeIfAbsent(id1.asLong(), k -> new HashMap<>()), id2);
+	/**
+	 * @return The number of keys (e.g. users or channels) whose state this ratelimit currently keeps in memory
+	 */
+	public int getBucketCount(){
+		return store == null ? 0 : store.size();
 	}
 }
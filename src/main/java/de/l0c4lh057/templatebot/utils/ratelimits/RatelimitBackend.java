@@ -0,0 +1,23 @@
+package de.l0c4lh057.templatebot.utils.ratelimits;
+
+/**
+ * The implementation used to keep the state of a {@link Ratelimit}.
+ */
+public enum RatelimitBackend {
+	/**
+	 * Every key gets its own Bucket4j bucket. Supports any combination of bandwidths.
+	 */
+	BUCKET4J,
+	/**
+	 * Every key is a single {@code long} (the theoretical arrival time of the generic cell rate algorithm) in a
+	 * primitive map, no objects are allocated per key or per check. Only supports a single bandwidth whose refill is
+	 * treated as greedy, ratelimits with multiple bandwidths fall back to {@link #BUCKET4J}.
+	 */
+	GCRA,
+	/**
+	 * The ratelimit is shared by all processes using the same database. Every process leases a part of the capacity of
+	 * a key from the database and uses it locally, so most checks don't need a query. Only supports a single bandwidth
+	 * and needs a name identifying the ratelimit in all processes.
+	 */
+	DISTRIBUTED
+}
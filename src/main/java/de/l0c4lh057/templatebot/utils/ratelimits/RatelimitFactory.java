@@ -2,23 +2,58 @@ package de.l0c4lh057.templatebot.utils.ratelimits;
 
 import io.github.bucket4j.Bandwidth;
 import reactor.util.annotation.NonNull;
+import reactor.util.annotation.Nullable;
 
 import java.util.List;
 
 public class RatelimitFactory {
 	/**
+	 * Creates a {@link Ratelimit} using the {@link RatelimitBackend#BUCKET4J} backend.
 	 *
-	 * @param ratelimitType
-	 * @param bandwidths
-	 * @return
+	 * @param ratelimitType The {@link RatelimitType} deciding which IDs are ratelimited together
+	 * @param bandwidths    The {@link Bandwidth}s of the ratelimit
+	 * @return The {@link Ratelimit}
 	 */
 	@NonNull
 	public static Ratelimit getRatelimit(@NonNull RatelimitType ratelimitType, @NonNull List<Bandwidth> bandwidths){
-		if(ratelimitType == RatelimitType.GUILD) return new GuildRatelimit(bandwidths);
-		else if(ratelimitType == RatelimitType.CHANNEL) return new ChannelRatelimit(bandwidths);
-		else if(ratelimitType == RatelimitType.USER) return new UserRatelimit(bandwidths);
-		else if(ratelimitType == RatelimitType.MEMBER) return new MemberRatelimit(bandwidths);
-		else if(ratelimitType == RatelimitType.USER_PER_CHANNEL) return new UserChannelRatelimit(bandwidths);
+		return getRatelimit(ratelimitType, RatelimitBackend.BUCKET4J, bandwidths);
+	}
+	
+	/**
+	 * @param ratelimitType The {@link RatelimitType} deciding which IDs are ratelimited together
+	 * @param backend       The {@link RatelimitBackend} keeping the state of the ratelimit
+	 * @param bandwidths    The {@link Bandwidth}s of the ratelimit
+	 * @return The {@link Ratelimit}
+	 */
+	@NonNull
+	public static Ratelimit getRatelimit(@NonNull RatelimitType ratelimitType, @NonNull RatelimitBackend backend, @NonNull List<Bandwidth> bandwidths){
+		return getRatelimit(null, ratelimitType, backend, bandwidths);
+	}
+	
+	/**
+	 * @param name          The name identifying the ratelimit in all processes, only needed for
+	 *                      {@link RatelimitBackend#DISTRIBUTED}
+	 * @param ratelimitType The {@link RatelimitType} deciding which IDs are ratelimited together
+	 * @param backend       The {@link RatelimitBackend} keeping the state of the ratelimit
+	 * @param bandwidths    The {@link Bandwidth}s of the ratelimit
+	 * @return The {@link Ratelimit}
+	 * @throws IllegalArgumentException If a distributed ratelimit has no name or not exactly one bandwidth
+	 */
+	@NonNull
+	public static Ratelimit getRatelimit(@Nullable String name, @NonNull RatelimitType ratelimitType, @NonNull RatelimitBackend backend, @NonNull List<Bandwidth> bandwidths){
+		if(backend == RatelimitBackend.DISTRIBUTED && (name == null || bandwidths.size() != 1)){
+			throw new IllegalArgumentException("Distributed ratelimits need a name and exactly one bandwidth");
+		}
+		if(bandwidths.isEmpty()) return NoRatelimit.getInstance();
+		RatelimitStore store;
+		if(backend == RatelimitBackend.DISTRIBUTED) store = new DistributedStore(name, bandwidths.get(0));
+		else if(backend == RatelimitBackend.GCRA && bandwidths.size() == 1) store = new GcraStore(bandwidths.get(0));
+		else store = new BucketStore(bandwidths);
+		if(ratelimitType == RatelimitType.GUILD) return new GuildRatelimit(store);
+		else if(ratelimitType == RatelimitType.CHANNEL) return new ChannelRatelimit(store);
+		else if(ratelimitType == RatelimitType.USER) return new UserRatelimit(store);
+		else if(ratelimitType == RatelimitType.MEMBER) return new MemberRatelimit(store);
+		else if(ratelimitType == RatelimitType.USER_PER_CHANNEL) return new UserChannelRatelimit(store);
 		else return NoRatelimit.getInstance();
 	}
 }
@@ -0,0 +1,23 @@
+package de.l0c4lh057.templatebot.utils.ratelimits;
+
+/**
+ * Keeps the state of all keys of one {@link Ratelimit}. Keys consist of one or two IDs, keys with only one ID use
+ * {@code 0} as second ID. The key {@code (0, 0)} is never used.
+ */
+interface RatelimitStore {
+	
+	/**
+	 * Tries to use the ratelimit of a key once.
+	 *
+	 * @param id1 The first part of the key
+	 * @param id2 The second part of the key or {@code 0} if the key only consists of one ID
+	 * @return Whether the usage is allowed, {@code false} if the key is ratelimited
+	 */
+	boolean tryConsume(long id1, long id2);
+	
+	/**
+	 * @return The number of keys whose state is currently kept in memory
+	 */
+	int size();
+	
+}
@@ -1,22 +1,15 @@
 package de.l0c4lh057.templatebot.utils.ratelimits;
 
 import discord4j.common.util.Snowflake;
-import io.github.bucket4j.Bandwidth;
-import io.github.bucket4j.Bucket;
 import reactor.util.annotation.NonNull;
 import reactor.util.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 public class UserChannelRatelimit extends Ratelimit {
-	private final Map<Long, Map<Long, Bucket>> buckets = new HashMap<>();
-	UserChannelRatelimit(@NonNull List<Bandwidth> bandwidths){
-		this.bandwidths = bandwidths;
+	UserChannelRatelimit(@NonNull RatelimitStore store){
+		super(store);
 	}
 	@Override
 	public boolean isRatelimited(@Nullable Snowflake guildId, @NonNull Snowflake channelId, @NonNull Snowflake userId) {
-		return isRatelimited(buckets, channelId, userId);
+		return isRatelimited(channelId, userId);
 	}
 }